@@ -3,9 +3,17 @@ package io.github.erdos.stencil;
 import io.github.erdos.stencil.functions.Function;
 import io.github.erdos.stencil.functions.FunctionEvaluator;
 import io.github.erdos.stencil.impl.NativeTemplateFactory;
+import io.github.erdos.stencil.impl.ZipArchive;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Map;
 
@@ -30,6 +38,117 @@ public final class API {
         return new NativeTemplateFactory().prepareTemplateFile(templateFile, options);
     }
 
+    /**
+     * Prepares a document template from the content of a template file. The template is built in memory,
+     * no temporary files are created.
+     *
+     * @param templateStream stream of a template file. It is read fully but it is not closed.
+     * @throws IllegalArgumentException when templateStream is null
+     * @throws IOException              on read error
+     */
+    public static PreparedTemplate prepare(InputStream templateStream) throws IOException {
+        return prepare(templateStream, PrepareOptions.options());
+    }
+
+    /**
+     * Prepares a document template from the content of a template file. The template is built in memory,
+     * no temporary files are created.
+     *
+     * @param templateStream stream of a template file. It is read fully but it is not closed.
+     * @throws IllegalArgumentException when templateStream is null
+     * @throws IOException              on read error
+     */
+    public static PreparedTemplate prepare(InputStream templateStream, PrepareOptions options) throws IOException {
+        return new NativeTemplateFactory().prepareTemplateArchive(ZipArchive.fromStream(templateStream), options);
+    }
+
+    /**
+     * Prepares a document template from the bytes of a template file. The template is built in memory,
+     * no temporary files are created. The array must not be modified afterwards.
+     */
+    public static PreparedTemplate prepare(byte[] templateBytes) throws IOException {
+        return prepare(templateBytes, PrepareOptions.options());
+    }
+
+    /**
+     * Prepares a document template from the bytes of a template file. The template is built in memory,
+     * no temporary files are created. The array must not be modified afterwards.
+     */
+    public static PreparedTemplate prepare(byte[] templateBytes, PrepareOptions options) throws IOException {
+        return new NativeTemplateFactory().prepareTemplateArchive(ZipArchive.fromBytes(templateBytes), options);
+    }
+
+    /**
+     * Prepares a document template from a path. The template is built in memory, no temporary files are created.
+     */
+    public static PreparedTemplate prepare(Path templatePath) throws IOException {
+        return prepare(templatePath, PrepareOptions.options());
+    }
+
+    /**
+     * Prepares a document template from a path. The template is built in memory, no temporary files are created.
+     * With {@link StorageMode#MAPPED} storage the file is memory mapped instead of being read.
+     */
+    public static PreparedTemplate prepare(Path templatePath, PrepareOptions options) throws IOException {
+        return new NativeTemplateFactory().prepareTemplateArchive(readArchive(templatePath, options), options);
+    }
+
+    /**
+     * Prepares a document template from a class path resource. No temporary files are created.
+     *
+     * @param resourceName name of resource, resolved with the context class loader
+     * @throws FileNotFoundException when resource is not found
+     */
+    public static PreparedTemplate prepareResource(String resourceName) throws IOException {
+        return prepareResource(resourceName, PrepareOptions.options());
+    }
+
+    /**
+     * Prepares a document template from a class path resource. No temporary files are created.
+     *
+     * @param resourceName name of resource, resolved with the context class loader
+     * @throws FileNotFoundException when resource is not found
+     */
+    public static PreparedTemplate prepareResource(String resourceName, PrepareOptions options) throws IOException {
+        try (InputStream stream = openResource(resourceName)) {
+            return prepare(stream, options);
+        }
+    }
+
+    /**
+     * Loads a template from a snapshot written by {@link PreparedTemplate#exportSnapshot(java.io.OutputStream)}.
+     * The template is not parsed again. Snapshots can only be loaded by the Stencil version that created them.
+     *
+     * @param snapshotStream content of the snapshot. It is read but it is not closed.
+     * @throws IllegalArgumentException when snapshotStream is null
+     * @throws IOException              on read error or when the snapshot was created by a different version
+     */
+    public static PreparedTemplate loadSnapshot(InputStream snapshotStream) throws IOException {
+        return loadSnapshot(snapshotStream, PrepareOptions.options());
+    }
+
+    /**
+     * Loads a template from a snapshot written by {@link PreparedTemplate#exportSnapshot(java.io.OutputStream)}.
+     * The template is not parsed again. Snapshots can only be loaded by the Stencil version that created them.
+     * Storage mode and compression policy are taken from the options.
+     *
+     * @param snapshotStream content of the snapshot. It is read but it is not closed.
+     * @throws IllegalArgumentException when snapshotStream is null
+     * @throws IOException              on read error or when the snapshot was created by a different version
+     */
+    public static PreparedTemplate loadSnapshot(InputStream snapshotStream, PrepareOptions options) throws IOException {
+        return new NativeTemplateFactory().loadTemplateSnapshot(snapshotStream, options);
+    }
+
+    /**
+     * Loads a template from a snapshot file written by {@link PreparedTemplate#exportSnapshot(java.io.OutputStream)}.
+     */
+    public static PreparedTemplate loadSnapshot(File snapshotFile) throws IOException {
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(snapshotFile))) {
+            return loadSnapshot(stream);
+        }
+    }
+
     /**
      * Prepares a document fragment from the file system. Fragments can be used to embed extra content when rendering
      * document templates. For example, custom headers and footers can be reused across documents this way.
@@ -48,6 +167,74 @@ public final class API {
         return fragment(fragmentFile, PrepareOptions.options());
     }
 
+    /**
+     * Prepares a document fragment from the content of a file. The stream is read fully but it is not closed.
+     * No temporary files are created.
+     */
+    public static PreparedFragment fragment(InputStream fragmentStream, PrepareOptions options) throws IOException {
+        return new NativeTemplateFactory().prepareFragmentArchive(ZipArchive.fromStream(fragmentStream), options);
+    }
+
+    public static PreparedFragment fragment(InputStream fragmentStream) throws IOException {
+        return fragment(fragmentStream, PrepareOptions.options());
+    }
+
+    /**
+     * Prepares a document fragment from the bytes of a file. No temporary files are created.
+     */
+    public static PreparedFragment fragment(byte[] fragmentBytes, PrepareOptions options) throws IOException {
+        return new NativeTemplateFactory().prepareFragmentArchive(ZipArchive.fromBytes(fragmentBytes), options);
+    }
+
+    public static PreparedFragment fragment(byte[] fragmentBytes) throws IOException {
+        return fragment(fragmentBytes, PrepareOptions.options());
+    }
+
+    /**
+     * Prepares a document fragment from a path. No temporary files are created.
+     */
+    public static PreparedFragment fragment(Path fragmentPath, PrepareOptions options) throws IOException {
+        return new NativeTemplateFactory().prepareFragmentArchive(readArchive(fragmentPath, options), options);
+    }
+
+    public static PreparedFragment fragment(Path fragmentPath) throws IOException {
+        return fragment(fragmentPath, PrepareOptions.options());
+    }
+
+    /**
+     * Prepares a document fragment from a class path resource. No temporary files are created.
+     *
+     * @throws FileNotFoundException when resource is not found
+     */
+    public static PreparedFragment fragmentResource(String resourceName, PrepareOptions options) throws IOException {
+        try (InputStream stream = openResource(resourceName)) {
+            return fragment(stream, options);
+        }
+    }
+
+    public static PreparedFragment fragmentResource(String resourceName) throws IOException {
+        return fragmentResource(resourceName, PrepareOptions.options());
+    }
+
+    /**
+     * Links known fragments to a prepared template. The includes of the template that name one of the fragments
+     * with a string literal are resolved once: the styles and relations of the fragments are merged into the
+     * template and the content of static fragments is prepared for insertion. Renders of the returned template
+     * do not need these fragments to be passed again.
+     * <p>
+     * The returned template uses the original template and the fragments. They must stay open while the returned
+     * template is used, closing the returned template does not close them. Templates with linked fragments do not
+     * support snapshots.
+     *
+     * @param template  prepared template
+     * @param fragments map of fragment names to prepared fragments
+     * @return new prepared template, not null
+     * @throws IllegalArgumentException when any argument is null
+     */
+    public static PreparedTemplate link(PreparedTemplate template, Map<String, PreparedFragment> fragments) {
+        return new NativeTemplateFactory().linkTemplate(template, fragments);
+    }
+
     public static EvaluatedDocument render(PreparedTemplate template, TemplateData data) {
         return render(template, emptyMap(), data, emptyList());
     }
@@ -63,4 +250,30 @@ public final class API {
         }
         return template.render(fragments, function, data);
     }
+
+    private static ZipArchive readArchive(Path path, PrepareOptions options) throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException("Path is null!");
+        } else if (options != null && options.getStorageMode() == StorageMode.MAPPED
+                && path.getFileSystem() == FileSystems.getDefault()) {
+            return ZipArchive.fromFile(path.toFile());
+        } else {
+            return ZipArchive.fromBytes(Files.readAllBytes(path));
+        }
+    }
+
+    private static InputStream openResource(String resourceName) throws IOException {
+        if (resourceName == null) {
+            throw new IllegalArgumentException("Resource name is null!");
+        }
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = API.class.getClassLoader();
+        }
+        final InputStream stream = loader.getResourceAsStream(resourceName);
+        if (stream == null) {
+            throw new FileNotFoundException("Resource not found: " + resourceName);
+        }
+        return stream;
+    }
 }
@@ -0,0 +1,121 @@
+package io.github.erdos.stencil;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Tells how the parts of a rendered document are compressed in the output archive.
+ * <p>
+ * Parts that are copied unchanged from a template archive keep their original compression.
+ */
+public final class CompressionPolicy {
+
+    private final static CompressionPolicy instance =
+            new CompressionPolicy(Deflater.DEFAULT_COMPRESSION, Collections.emptySet(), Long.MAX_VALUE, Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * File extensions of media types that are already compressed.
+     */
+    public final static Set<String> COMPRESSED_MEDIA_EXTENSIONS =
+            Collections.unmodifiableSet(new HashSet<>(Arrays.asList("png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "m4a")));
+
+    private final int level;
+
+    private final Set<String> storedExtensions;
+
+    private final long largePartThreshold;
+
+    private final int largePartLevel;
+
+    private CompressionPolicy(int level, Set<String> storedExtensions, long largePartThreshold, int largePartLevel) {
+        this.level = level;
+        this.storedExtensions = storedExtensions;
+        this.largePartThreshold = largePartThreshold;
+        this.largePartLevel = largePartLevel;
+    }
+
+    /**
+     * Every part is deflated with the default compression level.
+     */
+    public static CompressionPolicy defaultPolicy() {
+        return instance;
+    }
+
+    /**
+     * Trades output size for throughput: fastest compression level and already compressed media types are stored.
+     */
+    public static CompressionPolicy fast() {
+        return instance.withLevel(Deflater.BEST_SPEED).withStoredExtensions(COMPRESSED_MEDIA_EXTENSIONS);
+    }
+
+    /**
+     * Deflate level used for parts, between 0 and 9 or -1 for the default level.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    public CompressionPolicy withLevel(int level) {
+        return new CompressionPolicy(checkLevel(level), storedExtensions, largePartThreshold, largePartLevel);
+    }
+
+    /**
+     * Parts with these file extensions are stored without compression. Extensions are lower case, without a dot.
+     */
+    public Set<String> getStoredExtensions() {
+        return storedExtensions;
+    }
+
+    public CompressionPolicy withStoredExtensions(Set<String> extensions) {
+        if (extensions == null) {
+            throw new IllegalArgumentException("Extensions must not be null!");
+        }
+        final Set<String> normalized = new HashSet<>();
+        for (String extension : extensions) {
+            normalized.add(extension.toLowerCase(Locale.ROOT));
+        }
+        return new CompressionPolicy(level, Collections.unmodifiableSet(normalized), largePartThreshold, largePartLevel);
+    }
+
+    /**
+     * True when the part on the given path should be stored without compression.
+     */
+    public boolean isStored(String path) {
+        final int dot = path.lastIndexOf('.');
+        return dot >= 0 && dot > path.lastIndexOf('/')
+                && storedExtensions.contains(path.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Number of uncompressed bytes after which the rest of the part is deflated with the large part level.
+     */
+    public long getLargePartThreshold() {
+        return largePartThreshold;
+    }
+
+    public int getLargePartLevel() {
+        return largePartLevel;
+    }
+
+    /**
+     * Parts larger than threshold bytes are compressed with the given level after the first threshold bytes.
+     * Useful for choosing a fast level for huge main document parts.
+     */
+    public CompressionPolicy withLargePartLevel(long threshold, int level) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative: " + threshold);
+        }
+        return new CompressionPolicy(this.level, storedExtensions, threshold, checkLevel(level));
+    }
+
+    private static int checkLevel(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        return level;
+    }
+}
@@ -3,16 +3,38 @@ package io.github.erdos.stencil;
 import io.github.erdos.stencil.impl.InputStreamExceptionPropagation;
 
 import java.io.*;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 
 /**
  * An evaluated document ready to be converted to the final output format.
+ * <p>
+ * The document can be written more than once. Call {@link #close()} when it is not needed anymore to delete
+ * the temporary files of parts that were rendered with {@link PrepareOptions#withStreamingRender()}.
  */
 @SuppressWarnings("unused")
-public interface EvaluatedDocument {
+public interface EvaluatedDocument extends AutoCloseable {
 
+    /**
+     * Writes output of this document.
+     *
+     * @throws IllegalStateException when the document is already closed
+     */
     void write(OutputStream target);
 
+    /**
+     * Writes output of this document while the parts are serialized and compressed in parallel on the executor.
+     * The output is the same as the output of {@link #write(OutputStream)}.
+     * <p>
+     * Should not be called from a thread of the executor when the executor has a bounded number of threads.
+     *
+     * @param target   the document is written to this stream
+     * @param executor used to serialize and compress parts of the document
+     */
+    default void write(OutputStream target, Executor executor) {
+        write(target);
+    }
+
     /**
      * Writes output of this document to a file
      */
@@ -25,6 +47,13 @@ public interface EvaluatedDocument {
         }
     }
 
+    /**
+     * Releases the resources of the document. The document can not be written after it is closed.
+     */
+    @Override
+    default void close() {
+    }
+
     /**
      * Creates a blocking input stream that can be used to render generated document.
      *
@@ -4,15 +4,27 @@ import java.io.File;
 
 public final class PrepareOptions {
 
-	private final static PrepareOptions instance = new PrepareOptions(false, null);
+	private final static PrepareOptions instance = new PrepareOptions(false, null, StorageMode.TEMPORARY_DIRECTORY, CompressionPolicy.defaultPolicy(), false, false);
 
 	private final boolean onlyIncludes;
 
 	private final File temporaryDirectory;
 
-	private PrepareOptions(boolean onlyIncludes, File temporaryDirectory) {
+	private final StorageMode storageMode;
+
+	private final CompressionPolicy compressionPolicy;
+
+	private final boolean parallelEvaluation;
+
+	private final boolean streamingRender;
+
+	private PrepareOptions(boolean onlyIncludes, File temporaryDirectory, StorageMode storageMode, CompressionPolicy compressionPolicy, boolean parallelEvaluation, boolean streamingRender) {
 		this.onlyIncludes = onlyIncludes;
 		this.temporaryDirectory = temporaryDirectory;
+		this.storageMode = storageMode;
+		this.compressionPolicy = compressionPolicy;
+		this.parallelEvaluation = parallelEvaluation;
+		this.streamingRender = streamingRender;
 	}
 
 	public static PrepareOptions options() {
@@ -36,7 +48,7 @@ public final class PrepareOptions {
 		} else if (!tmpDir.isDirectory()) {
 			throw new IllegalArgumentException("Temporary directory parameter is not a directory: " + tmpDir);
 		} else {
-			return new PrepareOptions(onlyIncludes, tmpDir);
+			return new PrepareOptions(onlyIncludes, tmpDir, storageMode, compressionPolicy, parallelEvaluation, streamingRender);
 		}
 	}
 
@@ -45,6 +57,64 @@ public final class PrepareOptions {
 	 * not other expressions.
 	 */
 	public PrepareOptions withOnlyIncludes() {
-		return new PrepareOptions(true, temporaryDirectory);
+		return new PrepareOptions(true, temporaryDirectory, storageMode, compressionPolicy, parallelEvaluation, streamingRender);
+	}
+
+	/**
+	 * Tells where the parts of the prepared template are kept. Defaults to {@link StorageMode#TEMPORARY_DIRECTORY}.
+	 */
+	public StorageMode getStorageMode() {
+		return storageMode;
+	}
+
+	public PrepareOptions withStorageMode(StorageMode mode) {
+		if (mode == null) {
+			throw new IllegalArgumentException("Storage mode must not be null!");
+		} else {
+			return new PrepareOptions(onlyIncludes, temporaryDirectory, mode, compressionPolicy, parallelEvaluation, streamingRender);
+		}
+	}
+
+	/**
+	 * Tells how the parts of documents rendered from the template are compressed.
+	 * Defaults to {@link CompressionPolicy#defaultPolicy()}.
+	 */
+	public CompressionPolicy getCompressionPolicy() {
+		return compressionPolicy;
+	}
+
+	public PrepareOptions withCompressionPolicy(CompressionPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("Compression policy must not be null!");
+		} else {
+			return new PrepareOptions(onlyIncludes, temporaryDirectory, storageMode, policy, parallelEvaluation, streamingRender);
+		}
+	}
+
+	public boolean isParallelEvaluation() {
+		return parallelEvaluation;
+	}
+
+	/**
+	 * When marked withParallelEvaluation, then the main document, headers, footers and slides of the template are
+	 * evaluated concurrently on the common fork-join pool when rendering. Custom functions must be thread safe.
+	 */
+	public PrepareOptions withParallelEvaluation() {
+		return new PrepareOptions(onlyIncludes, temporaryDirectory, storageMode, compressionPolicy, true, streamingRender);
+	}
+
+	public boolean isStreamingRender() {
+		return streamingRender;
+	}
+
+	/**
+	 * When marked withStreamingRender, then the body of the main document is postprocessed and serialized element
+	 * by element during rendering instead of building the whole document in memory. Content above a limit is kept in
+	 * a file of the temporary directory until the document is closed, so documents rendered this way should be closed
+	 * after they are written. Templates with cross-references or {@code replaceImage()} and {@code replaceLink()} calls
+	 * in the main document are rendered the usual way, because these are resolved from the whole document.
+	 */
+	public PrepareOptions withStreamingRender() {
+		return new PrepareOptions(onlyIncludes, temporaryDirectory, storageMode, compressionPolicy, parallelEvaluation, true);
 	}
 }
@@ -3,6 +3,8 @@ package io.github.erdos.stencil;
 import io.github.erdos.stencil.functions.FunctionEvaluator;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.time.LocalDateTime;
 import java.util.Map;
 
@@ -17,12 +19,13 @@ public interface PreparedTemplate extends AutoCloseable {
     /**
      * Original template file that was preprocessed.
      *
-     * @return original template file
+     * @return original template file or null when the template was prepared from memory
      */
     File getTemplateFile();
 
     /**
      * Format of template file. Tries to guess from file name by default.
+     * Templates prepared from memory guess it from the location of the main document part.
      */
     default TemplateDocumentFormats getTemplateFormat() {
         return TemplateDocumentFormats
@@ -55,4 +58,18 @@ public interface PreparedTemplate extends AutoCloseable {
      * Renders the current prepared template file with the given template data.
      */
     EvaluatedDocument render(Map<String, PreparedFragment> fragments, FunctionEvaluator function, TemplateData templateData);
+
+    /**
+     * Writes a binary snapshot of the prepared template to the stream. Does not close the stream.
+     * <p>
+     * The snapshot can be loaded with {@link API#loadSnapshot(InputStream)} by the same Stencil version
+     * without parsing the template again.
+     *
+     * @param stream target stream
+     * @throws IOException on write error
+     * @throws UnsupportedOperationException when the template does not support snapshots
+     */
+    default void exportSnapshot(OutputStream stream) throws IOException {
+        throw new UnsupportedOperationException("Snapshots are not supported by " + getClass());
+    }
 }
\ No newline at end of file
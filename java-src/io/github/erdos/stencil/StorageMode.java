@@ -0,0 +1,31 @@
+package io.github.erdos.stencil;
+
+/**
+ * Describes where the parts of a prepared template or fragment are kept between renders.
+ */
+public enum StorageMode {
+
+    /**
+     * Archive is unzipped into a temporary directory that is deleted when the template is closed.
+     * Templates prepared from memory (byte arrays, streams) are kept on heap instead.
+     */
+    TEMPORARY_DIRECTORY,
+
+    /**
+     * Compressed archive is held in a byte array on the heap.
+     */
+    HEAP,
+
+    /**
+     * Compressed archive is copied into a direct buffer outside of the heap.
+     * The memory is released when the prepared template is garbage collected.
+     */
+    OFF_HEAP,
+
+    /**
+     * The original archive file is memory mapped and parts are read from it by random access.
+     * The file must not be modified or deleted while the prepared template is in use.
+     * Templates prepared from memory are kept on heap instead.
+     */
+    MAPPED
+}
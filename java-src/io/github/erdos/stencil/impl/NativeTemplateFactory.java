@@ -4,6 +4,9 @@ import io.github.erdos.stencil.*;
 import io.github.erdos.stencil.exceptions.ParsingException;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
 import java.util.Optional;
 
 import static io.github.erdos.stencil.TemplateDocumentFormats.ofExtension;
@@ -32,6 +35,32 @@ public final class NativeTemplateFactory implements TemplateFactory {
         }
     }
 
+    /**
+     * Prepares a template from an archive that is already in memory. Does not use the file system.
+     *
+     * @param archive content of the template document
+     * @param options template preparation options.
+     * @return preprocessed template
+     * @throws IllegalArgumentException when any argument is null
+     */
+    public PreparedTemplate prepareTemplateArchive(final ZipArchive archive, PrepareOptions options) {
+        if (archive == null) {
+            throw new IllegalArgumentException("Template archive parameter is null!");
+        }
+
+        if (options == null) {
+            throw new IllegalArgumentException("Template preparation options are missing!");
+        }
+
+        try {
+            return (PreparedTemplate) ClojureHelper.findFunction("prepare-template").invoke(archive, options);
+        } catch (ParsingException e) {
+            throw e;
+        } catch (Exception e) {
+            throw ParsingException.wrapping("Could not parse template file!", e);
+        }
+    }
+
     public PreparedFragment prepareFragmentFile(final File fragmentFile, PrepareOptions options) {
         if (fragmentFile == null) {
             throw new IllegalArgumentException("Fragment file parameter is null!");
@@ -49,4 +78,80 @@ public final class NativeTemplateFactory implements TemplateFactory {
             throw ParsingException.wrapping("Could not parse fragment template file!", e);
         }
     }
+
+    /**
+     * Prepares a fragment from an archive that is already in memory. Does not use the file system.
+     *
+     * @param archive content of the fragment document
+     * @param options template preparation options.
+     * @return prepared fragment
+     * @throws IllegalArgumentException when any argument is null
+     */
+    public PreparedFragment prepareFragmentArchive(final ZipArchive archive, PrepareOptions options) {
+        if (archive == null) {
+            throw new IllegalArgumentException("Fragment archive parameter is null!");
+        }
+
+        if (options == null) {
+            throw new IllegalArgumentException("Template preparation options are missing!");
+        }
+
+        try {
+            return (PreparedFragment) ClojureHelper.findFunction("prepare-fragment").invoke(archive, options);
+        } catch (ParsingException e) {
+            throw e;
+        } catch (Exception e) {
+            throw ParsingException.wrapping("Could not parse fragment template file!", e);
+        }
+    }
+
+    /**
+     * Links prepared fragments to a prepared template. See {@link API#link(PreparedTemplate, Map)}.
+     *
+     * @param template  prepared template
+     * @param fragments map of fragment names to prepared fragments
+     * @return new prepared template
+     * @throws IllegalArgumentException when any argument is null
+     */
+    public PreparedTemplate linkTemplate(final PreparedTemplate template, Map<String, PreparedFragment> fragments) {
+        if (template == null) {
+            throw new IllegalArgumentException("Template parameter is null!");
+        }
+
+        if (fragments == null) {
+            throw new IllegalArgumentException("Fragments parameter is null!");
+        }
+
+        return (PreparedTemplate) ClojureHelper.findFunction("link-template").invoke(template, fragments);
+    }
+
+    /**
+     * Loads a template from a snapshot written by {@link PreparedTemplate#exportSnapshot(java.io.OutputStream)}.
+     *
+     * @param stream  content of the snapshot, it is not closed
+     * @param options template preparation options.
+     * @return prepared template
+     * @throws IllegalArgumentException when any argument is null
+     * @throws IOException              on read error or when the snapshot was created by a different Stencil version
+     */
+    public PreparedTemplate loadTemplateSnapshot(final InputStream stream, PrepareOptions options) throws IOException {
+        if (stream == null) {
+            throw new IllegalArgumentException("Snapshot stream parameter is null!");
+        }
+
+        if (options == null) {
+            throw new IllegalArgumentException("Template preparation options are missing!");
+        }
+
+        try {
+            return (PreparedTemplate) ClojureHelper.findFunction("load-template-snapshot").invoke(stream, options);
+        } catch (ParsingException e) {
+            throw e;
+        } catch (Exception e) {
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw ParsingException.wrapping("Could not load template snapshot!", e);
+        }
+    }
 }
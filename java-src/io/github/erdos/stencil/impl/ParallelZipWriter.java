@@ -0,0 +1,256 @@
+package io.github.erdos.stencil.impl;
+
+import io.github.erdos.stencil.CompressionPolicy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a ZIP archive where entries are serialized and compressed concurrently on an executor.
+ * <p>
+ * Entries are added with {@link #putEntry(String, EntryWriter)} and {@link #copyEntry(String, ZipArchive.Entry)}.
+ * Writers run on the executor, large entries are split into blocks that are deflated in parallel the same way as
+ * pigz does: each block uses the end of the previous block as dictionary and is terminated with a sync flush, so
+ * the concatenated blocks form a single deflate stream. The archive is assembled in the order of the calls, so the
+ * output is deterministic.
+ * <p>
+ * Compressed content of an entry is kept in memory until it is written to the output stream.
+ * Methods must be called from a single thread that is not blocked by the tasks of the executor.
+ */
+public final class ParallelZipWriter implements Closeable {
+
+    static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final ZipWriter zip;
+    private final CompressionPolicy policy;
+    private final Executor executor;
+    private final List<Pending> pending = new ArrayList<>();
+
+    /**
+     * Serializes the content of an entry.
+     */
+    public interface EntryWriter {
+        void write(OutputStream stream) throws IOException;
+    }
+
+    public ParallelZipWriter(OutputStream out, CompressionPolicy policy, Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor is null!");
+        }
+        this.zip = new ZipWriter(out, policy);
+        this.policy = policy;
+        this.executor = executor;
+    }
+
+    /**
+     * Schedules serialization and compression of an entry on the executor.
+     */
+    public void putEntry(String name, EntryWriter writer) {
+        if (name == null) {
+            throw new IllegalArgumentException("Entry name is null!");
+        } else if (writer == null) {
+            throw new IllegalArgumentException("Entry writer is null!");
+        }
+        final boolean stored = policy.isStored(name);
+        pending.add(new Pending(name, null, CompletableFuture.supplyAsync(() -> {
+            try (BlockOutputStream stream = new BlockOutputStream(stored)) {
+                writer.write(stream);
+                return stream;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor)));
+    }
+
+    /**
+     * Copies an entry of an archive without decompressing it.
+     */
+    public void copyEntry(String name, ZipArchive.Entry entry) {
+        if (name == null) {
+            throw new IllegalArgumentException("Entry name is null!");
+        } else if (entry == null) {
+            throw new IllegalArgumentException("Entry is null!");
+        }
+        pending.add(new Pending(name, entry, null));
+    }
+
+    /**
+     * Waits for the scheduled entries, writes them in order and finishes the archive. Closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try (ZipWriter zip = this.zip) {
+            for (Pending p : pending) {
+                if (p.raw != null) {
+                    zip.copyEntry(p.name, p.raw);
+                } else {
+                    final BlockOutputStream stream = join(p.content);
+                    final List<byte[]> chunks = new ArrayList<>(stream.blocks.size());
+                    for (CompletableFuture<byte[]> block : stream.blocks) {
+                        chunks.add(join(block));
+                    }
+                    zip.writeCompressed(p.name, stream.method, stream.crc.getValue(), stream.size, chunks);
+                }
+            }
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    // Collects content into blocks. Full blocks are deflated on the executor, the last block on the writer thread.
+    private final class BlockOutputStream extends OutputStream {
+        private final int method;
+        private final CRC32 crc = new CRC32();
+        private final List<CompletableFuture<byte[]>> blocks = new ArrayList<>();
+        private byte[] previous;
+        private byte[] block = new byte[BLOCK_SIZE];
+        private int position;
+        private long submitted;
+        private long size;
+        private boolean closed;
+
+        private BlockOutputStream(boolean stored) {
+            this.method = stored ? ZipEntry.STORED : ZipEntry.DEFLATED;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            crc.update(bytes, offset, length);
+            size += length;
+            while (length > 0) {
+                if (position == block.length) {
+                    submit(false);
+                }
+                final int count = Math.min(length, block.length - position);
+                System.arraycopy(bytes, offset, block, position, count);
+                position += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                submit(true);
+            }
+        }
+
+        private void submit(boolean last) {
+            final byte[] input = position == block.length ? block : Arrays.copyOf(block, position);
+            final byte[] dictionary = previous;
+            final int level = submitted >= policy.getLargePartThreshold() ? policy.getLargePartLevel() : policy.getLevel();
+
+            if (method == ZipEntry.STORED) {
+                blocks.add(CompletableFuture.completedFuture(input));
+            } else if (last) {
+                blocks.add(CompletableFuture.completedFuture(deflate(input, dictionary, level, true)));
+            } else {
+                blocks.add(CompletableFuture.supplyAsync(() -> deflate(input, dictionary, level, false), executor));
+            }
+
+            submitted += input.length;
+            previous = input;
+            block = last ? null : new byte[BLOCK_SIZE];
+            position = 0;
+        }
+    }
+
+    private static byte[] deflate(byte[] input, byte[] dictionary, int level, boolean last) {
+        final Deflater deflater = ZipWriter.borrowDeflater();
+        try {
+            deflater.setLevel(level);
+            if (dictionary != null) {
+                final int length = Math.min(DICTIONARY_SIZE, dictionary.length);
+                deflater.setDictionary(dictionary, dictionary.length - length, length);
+            }
+            deflater.setInput(input);
+
+            final DeflateOutput output = new DeflateOutput(input.length / 2 + 64);
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    output.deflate(deflater, Deflater.NO_FLUSH);
+                }
+            } else {
+                // sync flush ends the block on a byte boundary so that blocks can be concatenated.
+                while (output.deflate(deflater, Deflater.SYNC_FLUSH)) {
+                    // repeat until the flush is complete
+                }
+            }
+            return output.toByteArray();
+        } finally {
+            ZipWriter.returnDeflater(deflater);
+        }
+    }
+
+    private static final class DeflateOutput {
+        private byte[] buffer;
+        private int length;
+
+        private DeflateOutput(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        // returns true when the deflater may have more output: the buffer was filled or input is left.
+        // the first call after a level change only applies the new level, it may not consume input.
+        private boolean deflate(Deflater deflater, int flush) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            final int free = buffer.length - length;
+            final int count = deflater.deflate(buffer, length, free, flush);
+            length += count;
+            return count == free || !deflater.needsInput();
+        }
+
+        private byte[] toByteArray() {
+            return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+        }
+    }
+
+    private static final class Pending {
+        private final String name;
+        private final ZipArchive.Entry raw;
+        private final CompletableFuture<BlockOutputStream> content;
+
+        private Pending(String name, ZipArchive.Entry raw, CompletableFuture<BlockOutputStream> content) {
+            this.name = name;
+            this.raw = raw;
+            this.content = content;
+        }
+    }
+}
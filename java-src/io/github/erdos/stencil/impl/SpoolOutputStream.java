@@ -0,0 +1,123 @@
+package io.github.erdos.stencil.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Output stream that keeps its content in memory up to a limit and moves it to a temporary file when it grows larger.
+ * <p>
+ * The content can be read back any number of times with {@link #writeTo(OutputStream)} after the stream is closed.
+ * Call {@link #delete()} when the content is not needed anymore, that also deletes the temporary file.
+ */
+public final class SpoolOutputStream extends OutputStream {
+
+    private final int memoryLimit;
+    private final File directory;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File file;
+    private OutputStream fileStream;
+    private boolean closed;
+    private boolean deleted;
+
+    /**
+     * @param memoryLimit content larger than this number of bytes is moved to a temporary file
+     * @param directory   directory of the temporary file, or null to use the default temporary directory
+     */
+    public SpoolOutputStream(int memoryLimit, File directory) {
+        if (memoryLimit < 0) {
+            throw new IllegalArgumentException("Memory limit must not be negative: " + memoryLimit);
+        }
+        this.memoryLimit = memoryLimit;
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Spool is already closed!");
+        }
+        if (memory != null && memory.size() + length > memoryLimit) {
+            file = File.createTempFile("stencil-", ".spool", directory);
+            fileStream = new BufferedOutputStream(new FileOutputStream(file));
+            memory.writeTo(fileStream);
+            memory = null;
+        }
+        if (memory != null) {
+            memory.write(bytes, offset, length);
+        } else {
+            fileStream.write(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Returns true when the content is not moved to a temporary file.
+     */
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileStream != null) {
+            fileStream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (fileStream != null) {
+            fileStream.close();
+        }
+    }
+
+    /**
+     * Writes the content to the output stream. Does not close the output stream.
+     *
+     * @throws IllegalStateException when the spool is not closed yet or the content was already deleted
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (deleted) {
+            throw new IllegalStateException("Spool content was already deleted!");
+        } else if (!closed) {
+            throw new IllegalStateException("Spool must be closed before reading!");
+        }
+        if (memory != null) {
+            memory.writeTo(out);
+        } else {
+            try (InputStream in = new FileInputStream(file)) {
+                final byte[] buffer = new byte[8192];
+                for (int len; (len = in.read(buffer)) > 0; ) {
+                    out.write(buffer, 0, len);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the content and deletes the temporary file. Can be called more than once.
+     */
+    public void delete() {
+        deleted = true;
+        memory = null;
+        try {
+            close();
+        } catch (IOException ignored) {
+            // the file is deleted anyway
+        }
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
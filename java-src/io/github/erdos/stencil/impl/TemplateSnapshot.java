@@ -0,0 +1,214 @@
+package io.github.erdos.stencil.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Binary snapshot of a prepared template.
+ * <p>
+ * A snapshot starts with a header of a magic string, the snapshot format version and the Stencil version that created
+ * it. It is followed by the bytes of the original template archive and the Java serialized template model. Parts of the
+ * model that point into the archive are replaced with {@link EntryRef} and {@link #ARCHIVE} objects, other values that
+ * can not be serialized are replaced by the caller.
+ * <p>
+ * Snapshots can only be loaded by the same Stencil version. Only load snapshots from trusted sources, as they contain
+ * Java serialized objects.
+ */
+public final class TemplateSnapshot {
+
+    private static final byte[] MAGIC = "STENCIL-SNAPSHOT".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Stands for the template archive in the serialized model.
+     */
+    public static final ArchiveRef ARCHIVE = new ArchiveRef();
+
+    private final ZipArchive archive;
+    private final Object model;
+
+    private TemplateSnapshot(ZipArchive archive, Object model) {
+        this.archive = archive;
+        this.model = model;
+    }
+
+    public ZipArchive getArchive() {
+        return archive;
+    }
+
+    public Object getModel() {
+        return model;
+    }
+
+    /**
+     * Writes a snapshot to the output stream. Does not close the stream.
+     *
+     * @param out     target stream
+     * @param version version of Stencil creating the snapshot
+     * @param archive content of the original template file
+     * @param model   template model
+     * @param replace called on every object of the model before it is serialized
+     * @throws IOException on write error or when the model contains objects that can not be serialized
+     */
+    public static void write(OutputStream out, String version, ZipArchive archive, Object model, UnaryOperator<Object> replace) throws IOException {
+        if (out == null || version == null || archive == null || replace == null) {
+            throw new IllegalArgumentException("Snapshot parameters must not be null!");
+        }
+
+        final DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        data.writeUTF(version);
+        data.writeLong(archive.length());
+        archive.writeTo(data);
+        data.flush();
+
+        final ObjectOutputStream objects = new ObjectOutputStream(out) {
+            {
+                enableReplaceObject(true);
+            }
+
+            @Override
+            protected Object replaceObject(Object obj) {
+                return replace.apply(obj);
+            }
+        };
+        objects.writeObject(model);
+        objects.flush();
+    }
+
+    /**
+     * Reads a snapshot from the input stream. Does not close the stream.
+     *
+     * @param in        source stream
+     * @param version   version of the current Stencil library, must be the same as the version that created the snapshot
+     * @param resolvers returns a function for an archive that is called on every deserialized object of the model
+     * @return snapshot content, not null
+     * @throws IOException on read error or when the content is not a valid snapshot of the same version
+     */
+    public static TemplateSnapshot read(InputStream in, String version, Function<ZipArchive, UnaryOperator<Object>> resolvers) throws IOException {
+        if (in == null || version == null || resolvers == null) {
+            throw new IllegalArgumentException("Snapshot parameters must not be null!");
+        }
+
+        final DataInputStream data = new DataInputStream(in);
+        final byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Content is not a Stencil template snapshot!");
+        }
+
+        final int formatVersion = data.readInt();
+        final String snapshotVersion = data.readUTF();
+        if (formatVersion != FORMAT_VERSION || !version.equals(snapshotVersion)) {
+            throw new IOException("Snapshot was created by Stencil " + snapshotVersion + ", can not be loaded by " + version);
+        }
+
+        final long length = data.readLong();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid archive length in snapshot: " + length);
+        }
+        final byte[] bytes = new byte[(int) length];
+        data.readFully(bytes);
+        final ZipArchive archive = ZipArchive.fromBytes(bytes);
+        final UnaryOperator<Object> resolve = resolvers.apply(archive);
+
+        final ObjectInputStream objects = new ObjectInputStream(in) {
+            {
+                enableResolveObject(true);
+            }
+
+            @Override
+            protected Object resolveObject(Object obj) {
+                return resolve.apply(obj);
+            }
+
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                try {
+                    return Class.forName(desc.getName(), false, TemplateSnapshot.class.getClassLoader());
+                } catch (ClassNotFoundException e) {
+                    return super.resolveClass(desc);
+                }
+            }
+        };
+
+        try {
+            return new TemplateSnapshot(archive, objects.readObject());
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException("Could not load class from snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reference to an entry of the template archive.
+     */
+    public static final class EntryRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+
+        public EntryRef(String path) {
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+    }
+
+    /**
+     * Reference to the template archive.
+     */
+    public static final class ArchiveRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private ArchiveRef() {}
+
+        private Object readResolve() {
+            return ARCHIVE;
+        }
+    }
+
+    /**
+     * Serializable form of an XML element.
+     */
+    public static final class ElementRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Object tag;
+        private final Object attrs;
+        private final Object content;
+
+        public ElementRef(Object tag, Object attrs, Object content) {
+            this.tag = tag;
+            this.attrs = attrs;
+            this.content = content;
+        }
+
+        public Object getTag() {
+            return tag;
+        }
+
+        public Object getAttrs() {
+            return attrs;
+        }
+
+        public Object getContent() {
+            return content;
+        }
+    }
+}
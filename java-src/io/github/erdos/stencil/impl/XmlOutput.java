@@ -0,0 +1,190 @@
+package io.github.erdos.stencil.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes XML markup and escaped text as UTF-8 bytes to an output stream.
+ * <p>
+ * The bytes are collected in a buffer that is reused by the instances created on the same thread.
+ * Escaping is the same as of the StAX stream writer of the JDK: the {@code & < >} characters are escaped
+ * in texts and the {@code "} character is also escaped in attribute values. ASCII characters that need no
+ * escaping are copied directly to the buffer. Unpaired surrogate characters are written as {@code ?} like
+ * an {@link java.io.OutputStreamWriter} does, even when the pair is split between two calls.
+ * <p>
+ * Call {@link #close()} to write the buffered bytes. The underlying stream is flushed but not closed.
+ * Not thread safe.
+ */
+public final class XmlOutput implements Closeable {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    // buffers of finished instances, an instance takes the buffer of its thread when it is free.
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<>();
+
+    private static final byte[] AMP = {'&', 'a', 'm', 'p', ';'};
+    private static final byte[] LT = {'&', 'l', 't', ';'};
+    private static final byte[] GT = {'&', 'g', 't', ';'};
+    private static final byte[] QUOT = {'&', 'q', 'u', 'o', 't', ';'};
+
+    private final OutputStream stream;
+    private byte[] buffer;
+    private int position;
+
+    // high surrogate at the end of the last written string
+    private char pendingSurrogate;
+
+    public XmlOutput(OutputStream stream) {
+        if (stream == null) {
+            throw new IllegalArgumentException("Stream must not be null!");
+        }
+        this.stream = stream;
+        final byte[] free = BUFFERS.get();
+        if (free != null) {
+            BUFFERS.set(null);
+            this.buffer = free;
+        } else {
+            this.buffer = new byte[BUFFER_SIZE];
+        }
+    }
+
+    /**
+     * Writes markup without escaping.
+     */
+    public void write(String s) throws IOException {
+        write(s, false, false);
+    }
+
+    /**
+     * Writes text content of an element.
+     */
+    public void writeText(String s) throws IOException {
+        write(s, true, false);
+    }
+
+    /**
+     * Writes the value of an attribute without the quotes.
+     */
+    public void writeAttribute(String s) throws IOException {
+        write(s, true, true);
+    }
+
+    private void write(String s, boolean escape, boolean attribute) throws IOException {
+        final int length = s.length();
+        int i = 0;
+        if (pendingSurrogate != 0 && length > 0) {
+            if (Character.isLowSurrogate(s.charAt(0))) {
+                writeCodePoint(Character.toCodePoint(pendingSurrogate, s.charAt(0)));
+                i = 1;
+            } else {
+                writeByte('?');
+            }
+            pendingSurrogate = 0;
+        }
+        for (; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                if (escape && (c == '&' || c == '<' || c == '>' || (attribute && c == '"'))) {
+                    writeEntity(c);
+                } else {
+                    if (position == buffer.length) {
+                        flushBuffer();
+                    }
+                    buffer[position++] = (byte) c;
+                }
+            } else if (Character.isHighSurrogate(c)) {
+                if (i + 1 == length) {
+                    pendingSurrogate = c;
+                } else if (Character.isLowSurrogate(s.charAt(i + 1))) {
+                    writeCodePoint(Character.toCodePoint(c, s.charAt(i + 1)));
+                    i++;
+                } else {
+                    writeByte('?');
+                }
+            } else if (Character.isLowSurrogate(c)) {
+                writeByte('?');
+            } else {
+                writeCodePoint(c);
+            }
+        }
+    }
+
+    private void writeEntity(char c) throws IOException {
+        switch (c) {
+            case '&':
+                writeBytes(AMP);
+                break;
+            case '<':
+                writeBytes(LT);
+                break;
+            case '>':
+                writeBytes(GT);
+                break;
+            default:
+                writeBytes(QUOT);
+        }
+    }
+
+    private void writeCodePoint(int cp) throws IOException {
+        if (buffer.length - position < 4) {
+            flushBuffer();
+        }
+        if (cp < 0x80) {
+            buffer[position++] = (byte) cp;
+        } else if (cp < 0x800) {
+            buffer[position++] = (byte) (0xC0 | (cp >> 6));
+            buffer[position++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (cp < 0x10000) {
+            buffer[position++] = (byte) (0xE0 | (cp >> 12));
+            buffer[position++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buffer[position++] = (byte) (0x80 | (cp & 0x3F));
+        } else {
+            buffer[position++] = (byte) (0xF0 | (cp >> 18));
+            buffer[position++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buffer[position++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buffer[position++] = (byte) (0x80 | (cp & 0x3F));
+        }
+    }
+
+    private void writeByte(char c) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) c;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (buffer.length - position < bytes.length) {
+            flushBuffer();
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void flushBuffer() throws IOException {
+        stream.write(buffer, 0, position);
+        position = 0;
+    }
+
+    /**
+     * Writes the buffered bytes and flushes the stream. The stream is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        if (pendingSurrogate != 0) {
+            writeByte('?');
+            pendingSurrogate = 0;
+        }
+        try {
+            flushBuffer();
+            stream.flush();
+        } finally {
+            BUFFERS.set(buffer);
+            buffer = null;
+        }
+    }
+}
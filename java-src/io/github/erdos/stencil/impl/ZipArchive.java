@@ -0,0 +1,478 @@
+package io.github.erdos.stencil.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only view of a ZIP archive that is fully available in a byte buffer.
+ * <p>
+ * Entries are located by reading the central directory of the archive, so the contents of an entry are only
+ * decompressed when they are actually read. Nothing is written to the file system.
+ * <p>
+ * The buffer may be on the heap, a direct buffer, or a memory mapped file.
+ */
+public final class ZipArchive {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_LENGTH = 22;
+
+    // general purpose flag bit telling that names are UTF-8 encoded.
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private static final Charset CP437 = cp437();
+
+    private final ByteBuffer archive;
+
+    // true when the archive is a view of a memory mapped file.
+    private final boolean mapped;
+
+    private final Map<String, Entry> entries;
+
+    private ZipArchive(ByteBuffer archive, boolean mapped, Map<String, Entry> entries) {
+        this.archive = archive;
+        this.mapped = mapped;
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Reads the whole stream into memory and parses it as a ZIP archive. Does not close the stream.
+     *
+     * @param stream input stream of a ZIP file
+     * @return archive instance, not null
+     * @throws IllegalArgumentException when stream is null
+     * @throws ZipException             when content is not a valid ZIP archive
+     * @throws IOException              on read error
+     */
+    public static ZipArchive fromStream(InputStream stream) throws IOException {
+        if (stream == null) {
+            throw new IllegalArgumentException("zip file stream is null!");
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int len; (len = stream.read(buffer)) > 0; ) {
+            bytes.write(buffer, 0, len);
+        }
+        return fromBytes(bytes.toByteArray());
+    }
+
+    /**
+     * Memory maps a ZIP file and parses it. Entries are read by random access from the mapped file,
+     * so the file must not be modified while the archive is in use.
+     *
+     * @param file ZIP file on the file system
+     * @return archive instance, not null
+     * @throws IllegalArgumentException when file is null
+     * @throws ZipException             when content is not a valid ZIP archive
+     * @throws IOException              on read error
+     */
+    public static ZipArchive fromFile(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("zip file is null!");
+        }
+
+        // the mapping stays valid after the channel is closed.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new ZipException("ZIP file is too large: " + file);
+            }
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), true);
+        }
+    }
+
+    /**
+     * Reads a ZIP file into a direct buffer outside of the heap and parses it.
+     * The archive does not depend on the file after this call.
+     *
+     * @param file ZIP file on the file system
+     * @return archive instance, not null
+     * @throws IllegalArgumentException when file is null
+     * @throws ZipException             when content is not a valid ZIP archive
+     * @throws IOException              on read error
+     */
+    public static ZipArchive fromFileDirect(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("zip file is null!");
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new ZipException("ZIP file is too large: " + file);
+            }
+            final ByteBuffer direct = ByteBuffer.allocateDirect((int) channel.size());
+            while (direct.hasRemaining()) {
+                if (channel.read(direct) < 0) {
+                    throw new EOFException("ZIP file was truncated while reading: " + file);
+                }
+            }
+            direct.flip();
+            return fromBuffer(direct);
+        }
+    }
+
+    /**
+     * Parses an in-memory ZIP archive. The array is not copied, it must not be modified afterwards.
+     *
+     * @param bytes content of a ZIP file
+     * @return archive instance, not null
+     * @throws IllegalArgumentException when bytes is null
+     * @throws ZipException             when content is not a valid ZIP archive
+     */
+    public static ZipArchive fromBytes(byte[] bytes) throws ZipException {
+        if (bytes == null) {
+            throw new IllegalArgumentException("zip file content is null!");
+        }
+        return fromBuffer(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Parses a ZIP archive from the remaining content of a buffer. The buffer is not copied.
+     *
+     * @param buffer content of a ZIP file
+     * @return archive instance, not null
+     * @throws IllegalArgumentException when buffer is null
+     * @throws ZipException             when content is not a valid ZIP archive
+     */
+    public static ZipArchive fromBuffer(ByteBuffer buffer) throws ZipException {
+        if (buffer == null) {
+            throw new IllegalArgumentException("zip file content is null!");
+        }
+        return parse(buffer, false);
+    }
+
+    private static ZipArchive parse(ByteBuffer buffer, boolean mapped) throws ZipException {
+        final ByteBuffer archive = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        final int eocd = findEndOfCentralDirectory(archive);
+        final int count = archive.getShort(eocd + 10) & 0xFFFF;
+        final long directoryOffset = archive.getInt(eocd + 16) & 0xFFFFFFFFL;
+
+        if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+            throw new ZipException("ZIP64 archives are not supported!");
+        } else if (directoryOffset > eocd) {
+            throw new ZipException("Invalid central directory offset: " + directoryOffset);
+        }
+
+        final Map<String, Entry> entries = new LinkedHashMap<>(count * 2);
+        int position = (int) directoryOffset;
+        for (int i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_LENGTH > eocd || archive.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory header at offset " + position);
+            }
+
+            final int flags = archive.getShort(position + 8) & 0xFFFF;
+            final int method = archive.getShort(position + 10) & 0xFFFF;
+            final long crc = archive.getInt(position + 16) & 0xFFFFFFFFL;
+            final long compressedSize = archive.getInt(position + 20) & 0xFFFFFFFFL;
+            final long size = archive.getInt(position + 24) & 0xFFFFFFFFL;
+            final int nameLength = archive.getShort(position + 28) & 0xFFFF;
+            final int extraLength = archive.getShort(position + 30) & 0xFFFF;
+            final int commentLength = archive.getShort(position + 32) & 0xFFFF;
+            final long localHeaderOffset = archive.getInt(position + 42) & 0xFFFFFFFFL;
+
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+                throw new ZipException("ZIP64 archives are not supported!");
+            } else if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+                throw new ZipException("Unsupported compression method " + method);
+            }
+
+            final String name = readName(archive, position + CENTRAL_HEADER_LENGTH, nameLength, flags);
+            position += CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+
+            if (name.endsWith("/")) {
+                continue; // directory entries have no content
+            }
+
+            final ByteBuffer data = entryData(archive, (int) localHeaderOffset, compressedSize);
+            entries.put(name, new Entry(name, method, crc, compressedSize, size, data));
+        }
+
+        return new ZipArchive(archive, mapped, entries);
+    }
+
+    /**
+     * Returns an archive with the same content that is stored in a direct buffer outside of the heap.
+     * Returns this instance when the archive is already stored in a direct buffer. Memory mapped archives
+     * are copied, so the result does not depend on the file.
+     */
+    public ZipArchive toDirect() throws ZipException {
+        if (archive.isDirect() && !mapped) {
+            return this;
+        }
+        final ByteBuffer direct = ByteBuffer.allocateDirect(archive.limit());
+        direct.put(archive.duplicate());
+        direct.flip();
+        return fromBuffer(direct);
+    }
+
+    /**
+     * Size of the whole archive in bytes.
+     */
+    public int length() {
+        return archive.limit();
+    }
+
+    /**
+     * Writes the whole archive to the output stream. Does not close the stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        final ByteBuffer content = archive.duplicate();
+        content.position(0);
+        final byte[] buffer = new byte[8192];
+        while (content.hasRemaining()) {
+            final int count = Math.min(buffer.length, content.remaining());
+            content.get(buffer, 0, count);
+            out.write(buffer, 0, count);
+        }
+    }
+
+    /**
+     * True when the content is stored outside of the heap, either in a direct buffer or in a mapped file.
+     */
+    public boolean isDirect() {
+        return archive.isDirect();
+    }
+
+    /**
+     * Returns entry for a given path or null when archive does not contain such file.
+     * Leading slash characters are ignored.
+     */
+    public Entry getEntry(String path) {
+        if (path == null) {
+            return null;
+        }
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        return entries.get(path);
+    }
+
+    /**
+     * All file entries in the order of the central directory.
+     */
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    @Override
+    public String toString() {
+        return "<ZipArchive of " + entries.size() + " entries>";
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer archive) throws ZipException {
+        // archive comment is at most 64 KiB long
+        final int minimum = Math.max(0, archive.limit() - END_OF_CENTRAL_DIRECTORY_LENGTH - 0xFFFF);
+        for (int i = archive.limit() - END_OF_CENTRAL_DIRECTORY_LENGTH; i >= minimum; i--) {
+            if (archive.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                return i;
+            }
+        }
+        throw new ZipException("Could not find end of central directory, content is not a ZIP archive!");
+    }
+
+    private static ByteBuffer entryData(ByteBuffer archive, int localHeaderOffset, long compressedSize) throws ZipException {
+        if (localHeaderOffset + LOCAL_HEADER_LENGTH > archive.limit()
+                || archive.getInt(localHeaderOffset) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local file header at offset " + localHeaderOffset);
+        }
+
+        final int nameLength = archive.getShort(localHeaderOffset + 26) & 0xFFFF;
+        final int extraLength = archive.getShort(localHeaderOffset + 28) & 0xFFFF;
+        final long start = (long) localHeaderOffset + LOCAL_HEADER_LENGTH + nameLength + extraLength;
+        final long end = start + compressedSize;
+
+        if (end > archive.limit()) {
+            throw new ZipException("Entry data is out of archive bounds at offset " + localHeaderOffset);
+        }
+
+        final ByteBuffer data = archive.duplicate();
+        data.limit((int) end);
+        data.position((int) start);
+        return data.slice();
+    }
+
+    private static String readName(ByteBuffer archive, int offset, int length, int flags) {
+        final byte[] bytes = new byte[length];
+        final ByteBuffer name = archive.duplicate();
+        name.position(offset);
+        name.get(bytes);
+        return new String(bytes, (flags & FLAG_UTF8) != 0 ? StandardCharsets.UTF_8 : CP437);
+    }
+
+    private static Charset cp437() {
+        try {
+            return Charset.forName("IBM437");
+        } catch (IllegalArgumentException e) {
+            return StandardCharsets.ISO_8859_1;
+        }
+    }
+
+    /**
+     * A single file in the archive. Holds the compressed data, it is inflated on each read.
+     */
+    public static final class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final ByteBuffer data;
+
+        private Entry(String name, int method, long crc, long compressedSize, long size, ByteBuffer data) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.data = data;
+        }
+
+        /**
+         * Path of the entry inside the archive, never starts with a slash.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Either {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * Uncompressed size of entry content.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Opens a new stream of the uncompressed content. Caller must close the stream.
+         */
+        public InputStream openStream() {
+            final InputStream raw = openRawStream();
+            if (method == ZipEntry.STORED) {
+                return raw;
+            } else {
+                return new EntryInflaterInputStream(raw);
+            }
+        }
+
+        /**
+         * Opens a new stream of the content as it is stored in the archive, without decompressing it.
+         */
+        public InputStream openRawStream() {
+            return new ByteBufferInputStream(data.duplicate());
+        }
+
+        @Override
+        public String toString() {
+            return "<ZipArchive.Entry " + name + ">";
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            } else if (!buffer.hasRemaining()) {
+                return -1;
+            } else {
+                final int count = Math.min(length, buffer.remaining());
+                buffer.get(bytes, offset, count);
+                return count;
+            }
+        }
+
+        @Override
+        public long skip(long n) {
+            final int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    // Raw inflater needs an extra dummy byte at the end of input, same as in java.util.zip.ZipFile.
+    private static final class EntryInflaterInputStream extends InflaterInputStream {
+        private boolean eof;
+        private boolean closed;
+
+        private EntryInflaterInputStream(InputStream raw) {
+            super(raw, new Inflater(true), 8192);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of ZIP entry");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                inf.end();
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package io.github.erdos.stencil.impl;
+
+import io.github.erdos.stencil.CompressionPolicy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a ZIP archive to an output stream.
+ * <p>
+ * Works like {@link java.util.zip.ZipOutputStream} for new entries: call {@link #putNextEntry(String)}, write the
+ * content to this stream and then call {@link #closeEntry()}. New entries are compressed as the
+ * {@link CompressionPolicy} says. Stored entries are buffered in memory until they are closed.
+ * <p>
+ * In addition, entries of a {@link ZipArchive} can be copied with {@link #copyEntry(String, ZipArchive.Entry)}.
+ * The compressed bytes, CRC and sizes are copied as they are, so the content is not inflated and deflated again.
+ * <p>
+ * ZIP64 archives are not supported. Not thread safe.
+ */
+public final class ZipWriter extends OutputStream {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION = 20;
+
+    // general purpose flag bits: sizes are in a data descriptor, names are UTF-8 encoded.
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+
+    // deflaters are reused across writers because creating them allocates native memory.
+    private static final int MAX_POOLED_DEFLATERS = 2 * Runtime.getRuntime().availableProcessors();
+    private static final Queue<Deflater> DEFLATER_POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger DEFLATER_POOL_SIZE = new AtomicInteger();
+
+    private final OutputStream out;
+    private final CompressionPolicy policy;
+    // returned to the pool and cleared when the writer is closed.
+    private Deflater deflater = borrowDeflater();
+    private final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[8192];
+    private final byte[] single = new byte[1];
+    private final byte[] header = new byte[46];
+
+    private final List<WrittenEntry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final int dosTime;
+    private final int dosDate;
+
+    private long written;
+    private WrittenEntry current;
+    private long currentSize;
+    private boolean finished;
+    private boolean closed;
+
+    public ZipWriter(OutputStream out) {
+        this(out, CompressionPolicy.defaultPolicy());
+    }
+
+    public ZipWriter(OutputStream out, CompressionPolicy policy) {
+        if (out == null) {
+            throw new IllegalArgumentException("Output stream is null!");
+        } else if (policy == null) {
+            throw new IllegalArgumentException("Compression policy is null!");
+        }
+        this.out = out;
+        this.policy = policy;
+
+        final Calendar now = Calendar.getInstance();
+        this.dosTime = (now.get(Calendar.HOUR_OF_DAY) << 11) | (now.get(Calendar.MINUTE) << 5) | (now.get(Calendar.SECOND) >> 1);
+        this.dosDate = ((Math.max(1980, now.get(Calendar.YEAR)) - 1980) << 9) | ((now.get(Calendar.MONTH) + 1) << 5) | now.get(Calendar.DAY_OF_MONTH);
+    }
+
+    /**
+     * Starts a new entry. Closes the current entry if there is one.
+     *
+     * @param name path of the entry in the archive
+     * @throws ZipException when an entry with the same name has already been written
+     */
+    public void putNextEntry(String name) throws IOException {
+        ensureOpen();
+        closeEntry();
+        final WrittenEntry entry;
+        if (name != null && policy.isStored(name)) {
+            // local header is written on close when size and crc are known.
+            entry = newEntry(name, ZipEntry.STORED, FLAG_UTF8);
+            stored.reset();
+        } else {
+            entry = newEntry(name, ZipEntry.DEFLATED, FLAG_DATA_DESCRIPTOR | FLAG_UTF8);
+            writeLocalHeader(entry);
+            deflater.reset();
+            deflater.setLevel(policy.getLevel());
+        }
+        crc.reset();
+        currentSize = 0;
+        current = entry;
+    }
+
+    /**
+     * Copies an entry of an archive without decompressing it. Closes the current entry if there is one.
+     *
+     * @param name  path of the entry in the archive
+     * @param entry source entry
+     * @throws ZipException when an entry with the same name has already been written
+     */
+    public void copyEntry(String name, ZipArchive.Entry entry) throws IOException {
+        if (entry == null) {
+            throw new IllegalArgumentException("Entry is null!");
+        }
+        ensureOpen();
+        closeEntry();
+        final WrittenEntry copy = newEntry(name, entry.getMethod(), FLAG_UTF8);
+        copy.crc = entry.getCrc();
+        copy.compressedSize = entry.getCompressedSize();
+        copy.size = entry.getSize();
+        writeLocalHeader(copy);
+        try (InputStream raw = entry.openRawStream()) {
+            for (int len; (len = raw.read(buffer)) > 0; ) {
+                writeRaw(buffer, 0, len);
+            }
+        }
+    }
+
+    /**
+     * Writes an entry that has already been compressed. Closes the current entry if there is one.
+     *
+     * @param name   path of the entry in the archive
+     * @param method {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @param crc    CRC-32 of the uncompressed content
+     * @param size   size of the uncompressed content
+     * @param chunks compressed content
+     */
+    void writeCompressed(String name, int method, long crc, long size, List<byte[]> chunks) throws IOException {
+        closeEntry();
+        long compressedSize = 0;
+        for (byte[] chunk : chunks) {
+            compressedSize += chunk.length;
+        }
+        if (compressedSize > MAX_SIZE || size > MAX_SIZE) {
+            throw new ZipException("Entry is too large, ZIP64 is not supported: " + name);
+        }
+        final WrittenEntry entry = newEntry(name, method, FLAG_UTF8);
+        entry.crc = crc;
+        entry.compressedSize = compressedSize;
+        entry.size = size;
+        writeLocalHeader(entry);
+        for (byte[] chunk : chunks) {
+            writeRaw(chunk, 0, chunk.length);
+        }
+    }
+
+    /**
+     * Finishes the current entry. Does nothing when there is no open entry.
+     */
+    public void closeEntry() throws IOException {
+        if (current == null) {
+            return;
+        }
+        final WrittenEntry entry = current;
+        current = null;
+
+        entry.crc = crc.getValue();
+        entry.size = currentSize;
+
+        if (entry.method == ZipEntry.STORED) {
+            entry.compressedSize = currentSize;
+            if (entry.size > MAX_SIZE) {
+                throw new ZipException("Entry is too large, ZIP64 is not supported: " + new String(entry.name, StandardCharsets.UTF_8));
+            }
+            writeLocalHeader(entry);
+            written += stored.size();
+            stored.writeTo(out);
+            stored.reset();
+            return;
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+
+        entry.compressedSize = deflater.getBytesWritten();
+        if (entry.compressedSize > MAX_SIZE || entry.size > MAX_SIZE) {
+            throw new ZipException("Entry is too large, ZIP64 is not supported: " + new String(entry.name, StandardCharsets.UTF_8));
+        }
+
+        putInt(0, DATA_DESCRIPTOR_SIGNATURE);
+        putInt(4, entry.crc);
+        putInt(8, entry.compressedSize);
+        putInt(12, entry.size);
+        writeRaw(header, 0, 16);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (current == null) {
+            throw new ZipException("No current ZIP entry!");
+        } else if (length == 0) {
+            return;
+        }
+        crc.update(bytes, offset, length);
+        if (current.method == ZipEntry.STORED) {
+            currentSize += length;
+            stored.write(bytes, offset, length);
+            return;
+        }
+        if (currentSize < policy.getLargePartThreshold() && currentSize + length >= policy.getLargePartThreshold()) {
+            // takes effect on the next deflate call
+            deflater.setLevel(policy.getLargePartLevel());
+        }
+        currentSize += length;
+        deflater.setInput(bytes, offset, length);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    /**
+     * Writes the central directory. The underlying stream is not closed.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        finished = true;
+
+        final long directoryOffset = written;
+        for (WrittenEntry entry : entries) {
+            putInt(0, CENTRAL_HEADER_SIGNATURE);
+            putShort(4, VERSION);
+            putShort(6, VERSION);
+            putShort(8, entry.flags);
+            putShort(10, entry.method);
+            putShort(12, dosTime);
+            putShort(14, dosDate);
+            putInt(16, entry.crc);
+            putInt(20, entry.compressedSize);
+            putInt(24, entry.size);
+            putShort(28, entry.name.length);
+            putShort(30, 0); // extra field length
+            putShort(32, 0); // comment length
+            putShort(34, 0); // disk number
+            putShort(36, 0); // internal attributes
+            putInt(38, 0); // external attributes
+            putInt(42, entry.offset);
+            writeRaw(header, 0, 46);
+            writeRaw(entry.name, 0, entry.name.length);
+        }
+        final long directorySize = written - directoryOffset;
+
+        if (entries.size() > 0xFFFF || directoryOffset > MAX_SIZE) {
+            throw new ZipException("Archive is too large, ZIP64 is not supported!");
+        }
+
+        putInt(0, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        putShort(4, 0); // number of this disk
+        putShort(6, 0); // disk of central directory
+        putShort(8, entries.size());
+        putShort(10, entries.size());
+        putInt(12, directorySize);
+        putInt(16, directoryOffset);
+        putShort(20, 0); // comment length
+        writeRaw(header, 0, 22);
+        out.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Finishes the archive and closes the underlying stream. Calling it again has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+        } finally {
+            // the deflater may be borrowed by another writer right after it is returned.
+            returnDeflater(deflater);
+            deflater = null;
+            out.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("ZIP writer is already closed!");
+        }
+    }
+
+    static Deflater borrowDeflater() {
+        final Deflater pooled = DEFLATER_POOL.poll();
+        if (pooled == null) {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        } else {
+            DEFLATER_POOL_SIZE.decrementAndGet();
+            return pooled;
+        }
+    }
+
+    static void returnDeflater(Deflater deflater) {
+        if (DEFLATER_POOL_SIZE.incrementAndGet() <= MAX_POOLED_DEFLATERS) {
+            deflater.reset();
+            DEFLATER_POOL.offer(deflater);
+        } else {
+            DEFLATER_POOL_SIZE.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    private WrittenEntry newEntry(String name, int method, int flags) throws ZipException {
+        if (name == null) {
+            throw new IllegalArgumentException("Entry name is null!");
+        } else if (finished) {
+            throw new ZipException("Archive is already finished!");
+        } else if (!names.add(name)) {
+            throw new ZipException("Duplicate entry: " + name);
+        } else if (written > MAX_SIZE) {
+            throw new ZipException("Archive is too large, ZIP64 is not supported!");
+        }
+        final WrittenEntry entry = new WrittenEntry(name.getBytes(StandardCharsets.UTF_8), method, flags, written);
+        entries.add(entry);
+        return entry;
+    }
+
+    private void writeLocalHeader(WrittenEntry entry) throws IOException {
+        putInt(0, LOCAL_HEADER_SIGNATURE);
+        putShort(4, VERSION);
+        putShort(6, entry.flags);
+        putShort(8, entry.method);
+        putShort(10, dosTime);
+        putShort(12, dosDate);
+        putInt(14, entry.crc);
+        putInt(18, entry.compressedSize);
+        putInt(22, entry.size);
+        putShort(26, entry.name.length);
+        putShort(28, 0); // extra field length
+        writeRaw(header, 0, 30);
+        writeRaw(entry.name, 0, entry.name.length);
+    }
+
+    private void deflate() throws IOException {
+        final int len = deflater.deflate(buffer, 0, buffer.length);
+        if (len > 0) {
+            writeRaw(buffer, 0, len);
+        }
+    }
+
+    private void writeRaw(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        written += length;
+    }
+
+    private void putShort(int offset, int value) {
+        header[offset] = (byte) value;
+        header[offset + 1] = (byte) (value >> 8);
+    }
+
+    private void putInt(int offset, long value) {
+        header[offset] = (byte) value;
+        header[offset + 1] = (byte) (value >> 8);
+        header[offset + 2] = (byte) (value >> 16);
+        header[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static final class WrittenEntry {
+        private final byte[] name;
+        private final int method;
+        private final int flags;
+        private final long offset;
+        private long crc;
+        private long compressedSize;
+        private long size;
+
+        private WrittenEntry(byte[] name, int method, int flags, long offset) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.offset = offset;
+        }
+    }
+}
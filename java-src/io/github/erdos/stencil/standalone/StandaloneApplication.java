@@ -8,15 +8,19 @@ import io.github.erdos.stencil.PreparedTemplate;
 import io.github.erdos.stencil.TemplateData;
 import io.github.erdos.stencil.impl.FileHelper;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.URL;
 import java.nio.file.Files;
 import java.util.*;
 import java.util.stream.Stream;
 
+import static io.github.erdos.stencil.API.loadSnapshot;
 import static io.github.erdos.stencil.API.prepare;
 import static io.github.erdos.stencil.API.render;
 import static io.github.erdos.stencil.impl.FileHelper.extension;
@@ -27,15 +31,19 @@ import static io.github.erdos.stencil.standalone.StencilArgsParser.JOBS_FROM_STD
 
 public class StandaloneApplication {
 
+    private static final String SNAPSHOT_EXTENSION = ".stencil";
+
     private final ArgsParser.ParseResult parsed;
     private final File outputDir;
     private final boolean overwriteOutput;
+    private final boolean compile;
     private final PrepareOptions prepareOptions;
 
     public StandaloneApplication(ArgsParser.ParseResult parsed) {
         this.parsed = parsed;
         this.outputDir = StencilArgsParser.getOutputDirectory(parsed);
         this.overwriteOutput = StencilArgsParser.getOutputOverwritten(parsed);
+        this.compile = StencilArgsParser.getCompile(parsed);
 
         if (StencilArgsParser.getOnlyIncludes(parsed)) {
             this.prepareOptions = PrepareOptions.options().withOnlyIncludes();
@@ -65,7 +73,11 @@ public class StandaloneApplication {
             displayHelpInfo();
         } else {
             try {
-                processJobs(rest);
+                if (compile) {
+                    compileTemplates(rest);
+                } else {
+                    processJobs(rest);
+                }
             } catch (EndOfFilesException ignored) {
                 // processed all files
             }
@@ -75,7 +87,7 @@ public class StandaloneApplication {
     private void processJobs(Iterator<String> rest) throws IOException {
         while (rest.hasNext()) {
             final File templateFile = new File(rest.next()).getAbsoluteFile();
-            final PreparedTemplate template = prepare(templateFile, prepareOptions);
+            final PreparedTemplate template = prepareTemplate(templateFile);
 
             while (rest.hasNext()) {
                 final File dataFile = new File(rest.next()).getAbsoluteFile();
@@ -90,18 +102,55 @@ public class StandaloneApplication {
                 } else {
                     //noinspection unchecked
                     final TemplateData templateData = TemplateData.fromMap((Map) data);
-                    final EvaluatedDocument document = render(template, templateData);
-
-                    final File targetFile = targetFile(outputDir, templateFile, dataFile);
-                    if (targetFile.exists() && overwriteOutput) {
-                        FileHelper.forceDelete(targetFile);
+                    try (final EvaluatedDocument document = render(template, templateData)) {
+                        final File targetFile = targetFile(outputDir, originalTemplateFile(templateFile), dataFile);
+                        if (targetFile.exists() && overwriteOutput) {
+                            FileHelper.forceDelete(targetFile);
+                        }
+                        document.writeToFile(targetFile);
                     }
-                    document.writeToFile(targetFile);
                 }
             }
         }
     }
 
+    // every job is a template file that is written to a snapshot file next to the rendered documents.
+    private void compileTemplates(Iterator<String> rest) throws IOException {
+        while (rest.hasNext()) {
+            final File templateFile = new File(rest.next()).getAbsoluteFile();
+            final File targetFile = new File(outputDir, templateFile.getName() + SNAPSHOT_EXTENSION);
+            if (targetFile.exists()) {
+                if (overwriteOutput) {
+                    FileHelper.forceDelete(targetFile);
+                } else {
+                    throw new IllegalArgumentException("Output file already exists: " + targetFile);
+                }
+            }
+
+            try (PreparedTemplate template = prepare(templateFile, prepareOptions);
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(targetFile))) {
+                template.exportSnapshot(out);
+            }
+        }
+    }
+
+    private PreparedTemplate prepareTemplate(File templateFile) throws IOException {
+        if (templateFile.getName().endsWith(SNAPSHOT_EXTENSION)) {
+            return loadSnapshot(templateFile);
+        } else {
+            return prepare(templateFile, prepareOptions);
+        }
+    }
+
+    // snapshot files are named after the template they were compiled from.
+    private static File originalTemplateFile(File templateFile) {
+        if (templateFile.getName().endsWith(SNAPSHOT_EXTENSION)) {
+            return new File(templateFile.getParentFile(), removeExtension(templateFile));
+        } else {
+            return templateFile;
+        }
+    }
+
     private Iterator<String> jobsIterator() {
         final Optional<File> jobsFile = parsed.getParamValue(JOBS_FILE);
         final Optional<Boolean> jobsStdin = parsed.getParamValue(JOBS_FROM_STDIN);
@@ -46,6 +46,11 @@ public final class StencilArgsParser {
     public static final ArgsParser.ParamMarker<Boolean> ONLY_INLCUDES = PARSER.addFlagOption('i', "only-include", "Only evaluate fragment includes");
 
 
+    /**
+     * Write template snapshots instead of rendering documents.
+     */
+    public static final ArgsParser.ParamMarker<Boolean> COMPILE = PARSER.addFlagOption('c', "compile", "Write template snapshots");
+
     public static ArgsParser.ParseResult parse(String... args) {
         return PARSER.parse(args);
     }
@@ -107,4 +112,14 @@ public final class StencilArgsParser {
     public static Boolean getOnlyIncludes(ArgsParser.ParseResult result) {
         return result.getParamValue(ONLY_INLCUDES).orElse(false);
     }
+
+    /**
+     * If specified, templates are compiled to snapshot files instead of being rendered.
+     *
+     * @return default false
+     * @throws NullPointerException if param is null
+     */
+    public static Boolean getCompile(ArgsParser.ParseResult result) {
+        return result.getParamValue(COMPILE).orElse(false);
+    }
 }
@@ -5,11 +5,22 @@ import io.github.erdos.stencil.functions.Function;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 public class APITest {
 
@@ -53,4 +64,147 @@ public class APITest {
             Assert.fail("Should have thrown exception");
         }
     }
+
+    @Test
+    public void testPrepareFromBytes() throws IOException {
+        final byte[] bytes = Files.readAllBytes(Paths.get("test-resources/test-custom-function.docx"));
+        try (final PreparedTemplate prepared = API.prepare(bytes)) {
+            assertRendersCustomFunction(prepared);
+        }
+    }
+
+    @Test
+    public void testPrepareFromStream() throws IOException {
+        try (final InputStream stream = new FileInputStream("test-resources/test-custom-function.docx");
+             final PreparedTemplate prepared = API.prepare(stream)) {
+            assertRendersCustomFunction(prepared);
+        }
+    }
+
+    @Test
+    public void testPrepareFromPath() throws IOException {
+        try (final PreparedTemplate prepared = API.prepare(Paths.get("test-resources/test-custom-function.docx"))) {
+            assertRendersCustomFunction(prepared);
+        }
+    }
+
+    @Test
+    public void testPrepareResource() throws IOException {
+        try (final PreparedTemplate prepared = API.prepareResource("test-custom-function.docx")) {
+            Assert.assertNull(prepared.getTemplateFile());
+            Assert.assertEquals(TemplateDocumentFormats.DOCX, prepared.getTemplateFormat());
+            assertRendersCustomFunction(prepared);
+        }
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testPrepareMissingResource() throws IOException {
+        API.prepareResource("no-such-template.docx");
+    }
+
+    private static void assertRendersCustomFunction(PreparedTemplate prepared) {
+        final CustomFunction fn = new CustomFunction();
+        final Map<String, Object> data = new HashMap<>();
+        data.put("input", "testInput");
+        API.render(prepared, Collections.emptyMap(), TemplateData.fromMap(data), Collections.singletonList(fn));
+        Assert.assertEquals("Custom function returned unexpected value", "testInput", fn.lastResult);
+    }
+
+    @Test
+    public void testStorageModes() throws IOException {
+        final File file = new File("test-resources/test-custom-function.docx");
+        for (StorageMode mode : StorageMode.values()) {
+            final PrepareOptions options = PrepareOptions.options().withStorageMode(mode);
+            try (final PreparedTemplate prepared = API.prepare(file, options)) {
+                Assert.assertEquals(file, prepared.getTemplateFile());
+                assertRendersCustomFunction(prepared);
+            }
+            try (final PreparedTemplate prepared = API.prepare(file.toPath(), options)) {
+                assertRendersCustomFunction(prepared);
+            }
+        }
+    }
+
+    @Test
+    public void testOffHeapDoesNotReadFile() throws IOException {
+        final File file = File.createTempFile("stencil", ".docx");
+        try {
+            Files.copy(Paths.get("test-resources/test-custom-function.docx"), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            final PrepareOptions options = PrepareOptions.options().withStorageMode(StorageMode.OFF_HEAP);
+            try (final PreparedTemplate prepared = API.prepare(file, options)) {
+                final Map<String, String> expected = renderedEntries(prepared);
+
+                // same length, so a mapped file would see the new content
+                Files.write(file.toPath(), new byte[(int) file.length()]);
+                Assert.assertTrue(file.delete());
+                Assert.assertEquals(expected, renderedEntries(prepared));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    // unchanged parts are copied from the archive when the document is written
+    private static Map<String, String> renderedEntries(PreparedTemplate prepared) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        API.render(prepared, Collections.emptyMap(), TemplateData.fromMap(Collections.singletonMap("input", "x")),
+                Collections.singletonList(new CustomFunction())).write(output);
+        final Map<String, String> entries = new HashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+            for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[8192];
+                for (int len; (len = zip.read(buffer)) > 0; ) {
+                    content.write(buffer, 0, len);
+                }
+                entries.put(entry.getName(), new String(content.toByteArray(), StandardCharsets.UTF_8));
+            }
+        }
+        return entries;
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        final File file = new File("test-resources/test-custom-function.docx");
+        for (StorageMode mode : StorageMode.values()) {
+            final PrepareOptions options = PrepareOptions.options().withStorageMode(mode);
+            final byte[] snapshot;
+            try (final PreparedTemplate prepared = API.prepare(file, options)) {
+                snapshot = exportSnapshot(prepared);
+            }
+            try (final PreparedTemplate loaded = API.loadSnapshot(new ByteArrayInputStream(snapshot), options)) {
+                Assert.assertNull(loaded.getTemplateFile());
+                Assert.assertEquals(TemplateDocumentFormats.DOCX, loaded.getTemplateFormat());
+                Assert.assertEquals(Collections.singleton("input"), loaded.getVariables().getAllVariables());
+                assertRendersCustomFunction(loaded);
+
+                // snapshot of a loaded template can be loaded again
+                try (final PreparedTemplate reloaded = API.loadSnapshot(new ByteArrayInputStream(exportSnapshot(loaded)))) {
+                    assertRendersCustomFunction(reloaded);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSnapshotVersionMismatch() throws IOException {
+        final byte[] snapshot;
+        try (final PreparedTemplate prepared = API.prepare(new File("test-resources/test-custom-function.docx"))) {
+            snapshot = exportSnapshot(prepared);
+        }
+        // first character of the version string after the magic, format version and string length.
+        snapshot[16 + 4 + 2]++;
+        API.loadSnapshot(new ByteArrayInputStream(snapshot));
+    }
+
+    @Test(expected = IOException.class)
+    public void testSnapshotInvalidContent() throws IOException {
+        API.loadSnapshot(new ByteArrayInputStream(Files.readAllBytes(Paths.get("test-resources/test-custom-function.docx"))));
+    }
+
+    private static byte[] exportSnapshot(PreparedTemplate template) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.exportSnapshot(out);
+        return out.toByteArray();
+    }
 }
@@ -0,0 +1,125 @@
+package io.github.erdos.stencil.impl;
+
+import io.github.erdos.stencil.CompressionPolicy;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ParallelZipWriterTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testWriteEntries() throws IOException {
+        final byte[] large = largeContent(5 * ParallelZipWriter.BLOCK_SIZE + 123);
+        final byte[] exact = largeContent(ParallelZipWriter.BLOCK_SIZE);
+        final ZipArchive source = ZipArchive.fromBytes(sequentialZip("copied.txt", "copied content".getBytes(StandardCharsets.UTF_8)));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ParallelZipWriter writer = new ParallelZipWriter(out, CompressionPolicy.defaultPolicy(), executor)) {
+            writer.putEntry("word/document.xml", stream -> stream.write(large));
+            writer.copyEntry("copied.txt", source.getEntry("copied.txt"));
+            writer.putEntry("exact.xml", stream -> stream.write(exact));
+            writer.putEntry("empty.xml", stream -> { });
+            writer.putEntry("bytes.xml", stream -> {
+                for (byte b : large) {
+                    stream.write(b);
+                }
+            });
+        }
+
+        final ZipArchive result = ZipArchive.fromBytes(out.toByteArray());
+        final List<String> names = new ArrayList<>();
+        for (ZipArchive.Entry entry : result.getEntries()) {
+            names.add(entry.getName());
+        }
+        assertEquals(Arrays.asList("word/document.xml", "copied.txt", "exact.xml", "empty.xml", "bytes.xml"), names);
+        assertArrayEquals(large, read(result.getEntry("word/document.xml").openStream()));
+        assertArrayEquals(exact, read(result.getEntry("exact.xml").openStream()));
+        assertArrayEquals(new byte[0], read(result.getEntry("empty.xml").openStream()));
+        assertArrayEquals(large, read(result.getEntry("bytes.xml").openStream()));
+        assertEquals("copied content", new String(read(result.getEntry("copied.txt").openStream()), StandardCharsets.UTF_8));
+
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+                assertEquals(result.getEntry(entry.getName()).getSize(), read(zis).length);
+            }
+        }
+    }
+
+    @Test
+    public void testCompressionPolicy() throws IOException {
+        final byte[] large = largeContent(3 * ParallelZipWriter.BLOCK_SIZE);
+        final CompressionPolicy policy = CompressionPolicy.fast().withLargePartLevel(ParallelZipWriter.BLOCK_SIZE, Deflater.NO_COMPRESSION);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ParallelZipWriter writer = new ParallelZipWriter(out, policy, executor)) {
+            writer.putEntry("media/image.png", stream -> stream.write(large));
+            writer.putEntry("document.xml", stream -> stream.write(large));
+        }
+
+        final ZipArchive result = ZipArchive.fromBytes(out.toByteArray());
+        assertEquals(ZipEntry.STORED, result.getEntry("media/image.png").getMethod());
+        assertArrayEquals(large, read(result.getEntry("media/image.png").openStream()));
+        assertArrayEquals(large, read(result.getEntry("document.xml").openStream()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriterFails() throws IOException {
+        try (ParallelZipWriter writer = new ParallelZipWriter(new ByteArrayOutputStream(), CompressionPolicy.defaultPolicy(), executor)) {
+            writer.putEntry("failing.xml", stream -> {
+                throw new IOException("failing writer");
+            });
+        }
+    }
+
+    private static byte[] largeContent(int size) {
+        final Random random = new Random(size);
+        final byte[] result = new byte[size];
+        for (int i = 0; i < size; i++) {
+            // compressible but not trivial content
+            result[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return result;
+    }
+
+    private static byte[] sequentialZip(String name, byte[] content) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipWriter writer = new ZipWriter(out)) {
+            writer.putNextEntry(name);
+            writer.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] read(InputStream stream) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int len; (len = stream.read(buffer)) > 0; ) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+}
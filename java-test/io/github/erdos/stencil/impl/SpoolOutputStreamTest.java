@@ -0,0 +1,85 @@
+package io.github.erdos.stencil.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpoolOutputStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testInMemory() throws IOException {
+        final SpoolOutputStream spool = new SpoolOutputStream(16, folder.getRoot());
+        spool.write("0123456789".getBytes(StandardCharsets.UTF_8));
+        spool.write('a');
+        spool.close();
+
+        assertTrue(spool.isInMemory());
+        assertEquals(0, folder.getRoot().list().length);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        spool.writeTo(out);
+        assertEquals("0123456789a", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testTemporaryFile() throws IOException {
+        final byte[] content = new byte[100];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        final SpoolOutputStream spool = new SpoolOutputStream(16, folder.getRoot());
+        spool.write(content, 0, 10);
+        spool.write(content, 10, 90);
+        spool.close();
+
+        assertFalse(spool.isInMemory());
+        assertEquals(1, folder.getRoot().list().length);
+
+        for (int i = 0; i < 2; i++) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            spool.writeTo(out);
+            assertArrayEquals(content, out.toByteArray());
+        }
+        assertEquals(1, folder.getRoot().list().length);
+
+        spool.delete();
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotReadableAfterDelete() throws IOException {
+        final SpoolOutputStream spool = new SpoolOutputStream(16, folder.getRoot());
+        spool.write(new byte[32]);
+        spool.close();
+        spool.delete();
+        spool.writeTo(new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotReadableBeforeClose() throws IOException {
+        final SpoolOutputStream spool = new SpoolOutputStream(16, folder.getRoot());
+        spool.write(new byte[32]);
+        spool.writeTo(new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        final SpoolOutputStream spool = new SpoolOutputStream(16, folder.getRoot());
+        spool.write(new byte[32]);
+        spool.delete();
+        assertEquals(0, folder.getRoot().list().length);
+    }
+}
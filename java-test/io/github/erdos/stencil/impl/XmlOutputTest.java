@@ -0,0 +1,60 @@
+package io.github.erdos.stencil.impl;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class XmlOutputTest {
+
+    @Test
+    public void testEscaping() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (XmlOutput out = new XmlOutput(bytes)) {
+            out.write("<a b=\"");
+            out.writeAttribute("x\"&<>'");
+            out.write("\">");
+            out.writeText("x\"&<>'");
+            out.write("</a>");
+        }
+        assertEquals("<a b=\"x&quot;&amp;&lt;&gt;'\">x\"&amp;&lt;&gt;'</a>", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEncoding() throws IOException {
+        final String text = "árvíztűrő € 😀";
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (XmlOutput out = new XmlOutput(bytes)) {
+            out.writeText(text);
+        }
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), bytes.toByteArray());
+    }
+
+    @Test
+    public void testSurrogates() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (XmlOutput out = new XmlOutput(bytes)) {
+            // pair split between calls, unpaired high and low surrogates
+            out.writeText("a\uD83D");
+            out.writeText("\uDE00b\uD83Dc\uDE00");
+        }
+        assertEquals("a😀b?c?", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLargeContent() throws IOException {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            text.append(i % 7 == 0 ? "&" : "ő");
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (XmlOutput out = new XmlOutput(bytes)) {
+            out.writeText(text.toString());
+        }
+        assertEquals(text.toString().replace("&", "&amp;"), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
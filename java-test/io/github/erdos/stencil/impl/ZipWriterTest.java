@@ -0,0 +1,199 @@
+package io.github.erdos.stencil.impl;
+
+import io.github.erdos.stencil.CompressionPolicy;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ZipWriterTest {
+
+    @Test
+    public void testWriteAndCopyEntries() throws IOException {
+        final ZipArchive source = ZipArchive.fromBytes(zipOf("stored.txt", ZipEntry.STORED, "stored content",
+                "deflated.txt", ZipEntry.DEFLATED, "deflated content"));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipWriter writer = new ZipWriter(out)) {
+            writer.putNextEntry("new/árvíztűrő.txt");
+            writer.write("new content".getBytes(StandardCharsets.UTF_8));
+            writer.closeEntry();
+            writer.copyEntry("copied/stored.txt", source.getEntry("stored.txt"));
+            writer.copyEntry("copied/deflated.txt", source.getEntry("deflated.txt"));
+            writer.putNextEntry("empty.txt");
+        }
+
+        final ZipArchive result = ZipArchive.fromBytes(out.toByteArray());
+        assertEquals(4, result.getEntries().size());
+        assertEquals("new content", read(result.getEntry("new/árvíztűrő.txt")));
+        assertEquals("stored content", read(result.getEntry("copied/stored.txt")));
+        assertEquals("deflated content", read(result.getEntry("copied/deflated.txt")));
+        assertEquals("", read(result.getEntry("empty.txt")));
+        assertEquals(ZipEntry.STORED, result.getEntry("copied/stored.txt").getMethod());
+        assertEquals(source.getEntry("deflated.txt").getCrc(), result.getEntry("copied/deflated.txt").getCrc());
+    }
+
+    @Test
+    public void testReadableByZipInputStream() throws IOException {
+        final ZipArchive source = ZipArchive.fromBytes(Files.readAllBytes(Paths.get("test-resources/test-image-1.docx")));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipWriter writer = new ZipWriter(out)) {
+            for (ZipArchive.Entry entry : source.getEntries()) {
+                writer.copyEntry(entry.getName(), entry);
+            }
+        }
+
+        int count = 0;
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+                assertEquals(source.getEntry(entry.getName()).getSize(), readFully(zis).length);
+                count++;
+            }
+        }
+        assertEquals(source.getEntries().size(), count);
+    }
+
+    @Test(expected = ZipException.class)
+    public void testDuplicateEntry() throws IOException {
+        try (ZipWriter writer = new ZipWriter(new ByteArrayOutputStream())) {
+            writer.putNextEntry("a.txt");
+            writer.putNextEntry("a.txt");
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void testWriteWithoutEntry() throws IOException {
+        try (ZipWriter writer = new ZipWriter(new ByteArrayOutputStream())) {
+            writer.write(1);
+        }
+    }
+
+    @Test
+    public void testMissingEntry() throws IOException {
+        assertNull(ZipArchive.fromBytes(zipOf()).getEntry("missing.txt"));
+    }
+
+    @Test
+    public void testCompressionPolicy() throws IOException {
+        final CompressionPolicy policy = CompressionPolicy.fast().withLargePartLevel(1000, Deflater.NO_COMPRESSION);
+        final StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            large.append("<w:p>paragraph ").append(i).append("</w:p>");
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipWriter writer = new ZipWriter(out, policy)) {
+            writer.putNextEntry("word/media/image1.PNG");
+            writer.write("not really a png".getBytes(StandardCharsets.UTF_8));
+            writer.putNextEntry("word/document.xml");
+            writer.write(large.toString().getBytes(StandardCharsets.UTF_8));
+            writer.putNextEntry("word/styles.xml");
+            writer.write("<styles/>".getBytes(StandardCharsets.UTF_8));
+        }
+
+        final ZipArchive result = ZipArchive.fromBytes(out.toByteArray());
+        assertEquals(ZipEntry.STORED, result.getEntry("word/media/image1.PNG").getMethod());
+        assertEquals("not really a png", read(result.getEntry("word/media/image1.PNG")));
+        assertEquals(ZipEntry.DEFLATED, result.getEntry("word/document.xml").getMethod());
+        assertEquals(large.toString(), read(result.getEntry("word/document.xml")));
+        assertEquals("<styles/>", read(result.getEntry("word/styles.xml")));
+
+        // also readable by the JDK stream reader
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+                assertEquals(result.getEntry(entry.getName()).getSize(), readFully(zis).length);
+            }
+        }
+    }
+
+    @Test
+    public void testStoredExtensions() {
+        final CompressionPolicy policy = CompressionPolicy.defaultPolicy().withStoredExtensions(Collections.singleton("JPG"));
+        assertTrue(policy.isStored("word/media/a.jpg"));
+        assertTrue(policy.isStored("word/media/a.JPG"));
+        assertFalse(policy.isStored("word/media/a.png"));
+        assertFalse(policy.isStored("word/media.jpg/a"));
+        assertFalse(CompressionPolicy.defaultPolicy().isStored("word/media/a.jpg"));
+    }
+
+    @Test
+    public void testCloseTwice() throws IOException {
+        final ZipWriter writer = new ZipWriter(new ByteArrayOutputStream());
+        writer.putNextEntry("a.txt");
+        writer.write(1);
+        writer.close();
+        writer.close();
+
+        // the deflater of the writer is in the pool only once
+        final Deflater first = ZipWriter.borrowDeflater();
+        final Deflater second = ZipWriter.borrowDeflater();
+        try {
+            assertNotSame(first, second);
+        } finally {
+            ZipWriter.returnDeflater(first);
+            ZipWriter.returnDeflater(second);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testClosedWriter() throws IOException {
+        final ZipWriter writer = new ZipWriter(new ByteArrayOutputStream());
+        writer.close();
+        writer.putNextEntry("a.txt");
+    }
+
+    private static byte[] zipOf(Object... nameMethodContent) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(out)) {
+            for (int i = 0; i < nameMethodContent.length; i += 3) {
+                final byte[] content = ((String) nameMethodContent[i + 2]).getBytes(StandardCharsets.UTF_8);
+                final ZipEntry entry = new ZipEntry((String) nameMethodContent[i]);
+                entry.setMethod((Integer) nameMethodContent[i + 1]);
+                if (entry.getMethod() == ZipEntry.STORED) {
+                    final CRC32 crc = new CRC32();
+                    crc.update(content);
+                    entry.setSize(content.length);
+                    entry.setCrc(crc.getValue());
+                }
+                zos.putNextEntry(entry);
+                zos.write(content);
+                zos.closeEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static String read(ZipArchive.Entry entry) throws IOException {
+        try (InputStream stream = entry.openStream()) {
+            return new String(readFully(stream), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        for (int len; (len = stream.read(buffer)) > 0; ) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+}
@@ -3,19 +3,34 @@
   (:require [clojure.walk :refer [stringify-keys]]
             [clojure.java.io :as io]
             [stencil.fs :as fs])
-  (:import [io.github.erdos.stencil API PreparedFragment PreparedTemplate TemplateData]
-           [java.util Map]))
+  (:import [io.github.erdos.stencil API EvaluatedDocument PreparedFragment PreparedTemplate TemplateData]
+           [java.io InputStream OutputStream]
+           [java.net URL]
+           [java.nio.file Path]
+           [java.util Map]
+           [java.util.concurrent Executor]))
 
 
 (set! *warn-on-reflection* true)
 (set! *unchecked-math* :warn-on-boxed)
 
+;; URLs pointing into jar files can not be converted to files.
+(defn- file-url? [input]
+  (and (instance? URL input) (= "file" (.getProtocol ^URL input))))
+
 (defn prepare
-  "Creates a prepared template instance from an input document."
+  "Creates a prepared template instance from an input document.
+   Input may be a file name or File object. Byte arrays, input streams,
+   java.nio.file.Path and resource URL objects are prepared in memory without temporary files."
   ^PreparedTemplate [input]
   (cond
     (instance? PreparedTemplate input) input
     (nil? input)  (throw (ex-info "Template is missing!" {}))
+    (bytes? input) (API/prepare ^bytes input)
+    (instance? InputStream input) (API/prepare ^InputStream input)
+    (instance? Path input) (API/prepare ^Path input)
+    (and (instance? URL input) (not (file-url? input)))
+    (with-open [stream (io/input-stream input)] (API/prepare stream))
     :else         (API/prepare (io/file input))))
 
 
@@ -27,14 +42,32 @@
 
 
 (defn fragment
-  "Converts input to a fragment instance"
+  "Converts input to a fragment instance. Accepts the same inputs as the prepare function."
   ^PreparedFragment [f]
   (cond
     (instance? PreparedFragment f) f
     (nil? f)   (throw (ex-info "Fragment can not be null!" {}))
+    (bytes? f) (API/fragment ^bytes f)
+    (instance? InputStream f) (API/fragment ^InputStream f)
+    (instance? Path f) (API/fragment ^Path f)
+    (and (instance? URL f) (not (file-url? f)))
+    (with-open [stream (io/input-stream f)] (API/fragment stream))
     :else      (API/fragment (io/file f))))
 
 
+(defn link
+  "Returns a prepared template where the includes of the fragments with literal names are resolved once.
+   Takes a prepared template and a map of fragment names to prepared fragments. The linked fragments do not
+   need to be passed to render! again, but the returned template uses the template and the fragments: they
+   must stay open while it is used and closing the returned template does not close them."
+  ^PreparedTemplate [template fragments]
+  (when-not (instance? PreparedTemplate template)
+    (throw (ex-info "Template must be a prepared template!" {:template template})))
+  (doseq [[k v] fragments :when (not (instance? PreparedFragment v))]
+    (throw (ex-info "Fragment must be a prepared fragment!" {:name k :fragment v})))
+  (API/link template (into {} (for [[k v] fragments] [(name k) v]))))
+
+
 (defn render!
   "Takes a prepared template instance and renders it.
    By default it returns an InputStream of the rendered document.
@@ -44,7 +77,10 @@
   - {:output FNAME} renders output to file FNAME (string or File object). Throws exception
     if file already exists and :overwrite? option is not set.
   - {:output STREAM} writes output to an OutputStream object.
-  - {:output :input-stream} returns an input stream of the result document."
+  - {:output :input-stream} returns an input stream of the result document.
+  - {:executor EXECUTOR} parts are serialized and compressed in parallel on the java.util.concurrent.Executor
+    when writing to a file or to an OutputStream.
+  Without the :output option the EvaluatedDocument is returned, close it when it is not needed anymore."
   [template template-data & {:as opts}]
   (let [template      (prepare template)
         fragments     (into {} (for [[k v] (:fragments opts)] [(name k) (fragment v)]))
@@ -52,10 +88,17 @@
         result (API/render template fragments template-data)]
     (cond
       (#{:stream :input-stream} (:output opts))
-      (.toInputStream result clojure.lang.Agent/soloExecutor)
-
-      (instance? java.io.OutputStream (:output opts))
-      (.write result (:output opts))
+      ;; the document is closed when the stream is fully written
+      (.toInputStream (reify EvaluatedDocument
+                        (write [_ target]
+                          (with-open [result result] (.write result target))))
+                      clojure.lang.Agent/soloExecutor)
+
+      (instance? OutputStream (:output opts))
+      (with-open [result result]
+        (if-let [executor (:executor opts)]
+          (.write result ^OutputStream (:output opts) ^Executor executor)
+          (.write result ^OutputStream (:output opts))))
 
       (:output opts)
       (let [f (io/file (:output opts))]
@@ -63,8 +106,12 @@
           (if (:overwrite? opts)
             (.delete f)
             (throw (ex-info "File already exists! " {:file f}))))
-        (do (.writeToFile result f)
-            (str "Written to " f)))
+        (with-open [result result]
+          (if-let [executor (:executor opts)]
+            (with-open [out (io/output-stream f)]
+              (.write result out ^Executor executor))
+            (.writeToFile result f)))
+        (str "Written to " f))
 
       :else
       result)))
@@ -76,5 +123,28 @@
         :else (throw (ex-info "Unexpected object to clean up!" {:template template})))
   template)
 
+;; Snapshots skip parsing of the template when it is loaded again.
+(defn export-snapshot!
+  "Writes a binary snapshot of a prepared template to the output.
+   Output may be a file name, File object or OutputStream. Returns the template."
+  [^PreparedTemplate template output]
+  (assert (instance? PreparedTemplate template))
+  (if (instance? OutputStream output)
+    (.exportSnapshot template ^OutputStream output)
+    (with-open [stream (io/output-stream (io/file output))]
+      (.exportSnapshot template stream)))
+  template)
+
+
+(defn load-snapshot
+  "Loads a prepared template from a snapshot created by export-snapshot!.
+   Input may be a file name, File object, byte array or InputStream."
+  ^PreparedTemplate [input]
+  (cond
+    (nil? input) (throw (ex-info "Snapshot is missing!" {}))
+    (instance? InputStream input) (API/loadSnapshot ^InputStream input)
+    :else (with-open [stream (io/input-stream (if (bytes? input) input (io/file input)))]
+            (API/loadSnapshot stream))))
+
 (defmacro get-version ^:private [] (slurp (io/resource "stencil-version")))
 (def version (doto (get-version) (assert)))
@@ -0,0 +1,184 @@
+(ns stencil.emit
+  "Serializes XML trees of rendered parts.
+
+   The output is the same as of clojure.data.xml/emit with the UTF-8 encoding, but the bytes are written
+   directly to the output stream with a reused buffer and without a StAX writer. Namespace prefixes are
+   resolved with the same prefix-uri maps. When an element does not declare new namespaces, which is the
+   usual case as the known OOXML namespaces are declared on the root element, the prefix map of the parent
+   is used as it is and the qualified names are looked up from a cache of the prefix map."
+  (:require [clojure.data.xml.name :as xml-name]
+            [clojure.data.xml.node]
+            [clojure.data.xml.protocols :refer [xml-str]]
+            [clojure.data.xml.pu-map :as pu]
+            [clojure.string :as s])
+  (:import [clojure.data.xml.node CData Comment]
+           [io.github.erdos.stencil.impl XmlOutput]
+           [java.io OutputStream]
+           [java.util HashMap IdentityHashMap]
+           [javax.xml.namespace QName]))
+
+(set! *warn-on-reflection* true)
+
+(def ^:private xml-declaration "<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+
+;; same as in clojure.data.xml.jvm.emit
+(defn- compute-prefix [tpu uri suggested]
+  (or (pu/get-prefix tpu uri)
+      (loop [prefix (or suggested (xml-name/gen-prefix))]
+        (if (pu/get tpu prefix)
+          (recur (xml-name/gen-prefix))
+          prefix))))
+
+;; same as in clojure.data.xml.jvm.emit, without logging
+(defn- compute-pu [pu elem-pu attr-uris tag-uri]
+  (let [tpu (pu/transient pu)
+        tpu (reduce-kv (fn [tpu ns-attr uri] (pu/assoc! tpu (compute-prefix tpu uri ns-attr) uri))
+                       tpu (pu/prefix-map elem-pu))
+        tpu (reduce (fn [tpu uri] (pu/assoc! tpu (compute-prefix tpu uri nil) uri))
+                    tpu (if (s/blank? tag-uri) attr-uris (cons tag-uri attr-uris)))
+        tpu (if-let [uri (and (s/blank? tag-uri) (pu/get tpu ""))]
+              (-> tpu
+                  (pu/assoc! "" "")
+                  (as-> tpu (pu/assoc! tpu (compute-prefix tpu uri nil) uri)))
+              tpu)]
+    (pu/persistent! tpu)))
+
+;; state of a document: the output, the uri of qnames and the serialized qnames of every prefix map.
+(defn- ->state [^XmlOutput out] {:out out :uris (HashMap.) :names (IdentityHashMap.)})
+
+(defn- qname-uri ^String [state qn]
+  (let [^HashMap uris (:uris state)]
+    (or (.get uris qn)
+        (let [uri (xml-name/qname-uri qn)]
+          (.put uris qn uri)
+          uri))))
+
+(defn- qualified-name ^String [state pu qn]
+  (let [^IdentityHashMap names (:names state)
+        ^HashMap cache (or (.get names pu) (let [m (HashMap.)] (.put names pu m) m))]
+    (or (.get cache qn)
+        (let [uri    (qname-uri state qn)
+              prefix (when-not (s/blank? uri) (pu/get-prefix pu uri))
+              name   (if (s/blank? prefix)
+                       (xml-name/qname-local qn)
+                       (str prefix ":" (xml-name/qname-local qn)))]
+          (.put cache qn name)
+          name))))
+
+;; Returns the prefix map of an element when it is the same as the prefix map of the parent. That is when
+;; every namespace of the element already has a prefix and no default namespace needs to be renamed.
+;; Namespaces without uri still use up generated prefixes like in compute-pu.
+(defn- inherited-pu [state parent elem-pu tag-uri attrs]
+  (when (and (or (identical? elem-pu pu/EMPTY)
+                 (every? (partial pu/get-prefix parent) (vals (pu/prefix-map elem-pu))))
+             (if (s/blank? tag-uri)
+               (nil? (pu/get parent ""))
+               (pu/get-prefix parent tag-uri))
+             (every? (fn [k] (let [uri (qname-uri state k)] (or (s/blank? uri) (pu/get-prefix parent uri))))
+                     (keys attrs)))
+    (doseq [k (keys attrs) :when (s/blank? (qname-uri state k))]
+      (compute-prefix parent "" nil))
+    parent))
+
+(defn- attr-str ^String [state pu value]
+  (if (or (keyword? value) (instance? QName value))
+    (let [prefix (pu/get-prefix pu (xml-name/qname-uri value))]
+      (when-not prefix
+        (throw (ex-info "Auto-generating prefixes is not supported for content-qnames. Please declare all URIs used in content qnames."
+                        {:qname value :uri (xml-name/qname-uri value)})))
+      (str prefix ":" (xml-name/qname-local value)))
+    (xml-str value)))
+
+(defn- xmlns-attrs? [state attrs]
+  (some (fn [k] (or (= xml-name/xmlns-uri (qname-uri state k))
+                    (and (s/blank? (qname-uri state k)) (= "xmlns" (xml-name/qname-local k)))))
+        (keys attrs)))
+
+(declare emit-node!)
+
+(defn- element-attrs+pu
+  "Returns a vector of the attributes without the namespace declarations and the prefix map of the element."
+  [state parent element]
+  (let [elem-pu (get (meta element) :clojure.data.xml/nss pu/EMPTY)
+        [attrs elem-pu] (if (xmlns-attrs? state (:attrs element))
+                          (xml-name/separate-xmlns (:attrs element) (fn [attrs xmlns] [attrs (pu/merge-prefix-map elem-pu xmlns)]))
+                          [(:attrs element) elem-pu])
+        tag-uri (qname-uri state (:tag element))]
+    [attrs (or (inherited-pu state parent elem-pu tag-uri attrs)
+               (compute-pu parent elem-pu (map (partial qname-uri state) (keys attrs)) tag-uri))]))
+
+(defn- emit-element! [state parent element]
+  (let [^XmlOutput out (:out state)
+        content (:content element)
+        [attrs pu] (element-attrs+pu state parent element)
+        name    (qualified-name state pu (:tag element))]
+    (.write out "<")
+    (.write out name)
+    (when-not (identical? pu parent)
+      (pu/reduce-diff (fn [_ prefix uri]
+                        (if (s/blank? prefix)
+                          (.write out " xmlns=\"")
+                          (do (.write out " xmlns:") (.write out ^String prefix) (.write out "=\"")))
+                        (.writeAttribute out uri)
+                        (.write out "\""))
+                      nil parent pu))
+    (reduce-kv (fn [_ k v]
+                 (.write out " ")
+                 (.write out (qualified-name state pu k))
+                 (.write out "=\"")
+                 (.writeAttribute out (attr-str state pu v))
+                 (.write out "\""))
+               nil attrs)
+    (if (seq content)
+      (do (.write out ">")
+          (doseq [child content] (emit-node! state pu child))
+          (.write out "</")
+          (.write out name)
+          (.write out ">"))
+      (.write out "/>"))))
+
+(defn- emit-cdata! [^XmlOutput out ^String cdata]
+  (when-not (s/blank? cdata)
+    (let [idx (.indexOf cdata "]]>")]
+      (.write out "<![CDATA[")
+      (.write out (if (= -1 idx) cdata (subs cdata 0 (+ idx 2))))
+      (.write out "]]>")
+      (when-not (= -1 idx)
+        (recur out (subs cdata (+ idx 2)))))))
+
+(defn- emit-node! [state pu node]
+  (let [^XmlOutput out (:out state)]
+    (cond
+      (string? node)               (.writeText out node)
+      (map? node)                  (if (or (instance? CData node) (instance? Comment node))
+                                     (if (instance? CData node)
+                                       (emit-cdata! out (:content node))
+                                       (do (.write out "<!--") (.write out ^String (:content node)) (.write out "-->")))
+                                     (emit-element! state pu node))
+      (sequential? node)           (doseq [n node] (emit-node! state pu n))
+      (or (keyword? node)
+          (instance? QName node))  (.writeText out (attr-str state pu node))
+      :else                        (.writeText out (xml-str node)))))
+
+(defn emit!
+  "Writes the XML declaration and the element tree to the output stream. The stream is flushed but not closed."
+  [element ^OutputStream stream]
+  (binding [xml-name/*gen-prefix-counter* 0]
+    (with-open [out (new XmlOutput stream)]
+      (.write out xml-declaration)
+      (emit-node! (->state out) pu/EMPTY element))))
+
+(defn root-prefixes
+  "Returns the prefix map of the element when it is written as the root element of a document."
+  [element]
+  (binding [xml-name/*gen-prefix-counter* 0]
+    (second (element-attrs+pu (->state nil) pu/EMPTY element))))
+
+(defn emit-children!
+  "Writes the nodes as if they were the last children of a root element with the prefix map from root-prefixes.
+   Only the nodes are written. The stream is flushed but not closed."
+  [prefixes nodes ^OutputStream stream]
+  (binding [xml-name/*gen-prefix-counter* 0]
+    (with-open [out (new XmlOutput stream)]
+      (let [state (->state out)]
+        (doseq [node nodes] (emit-node! state prefixes node))))))
@@ -1,9 +1,10 @@
 (ns stencil.eval
   "converts Normalized Control AST -> Evaled token seq"
   (:require [stencil.log :as log]
-            [stencil.infix :refer [eval-rpn]]
+            [stencil.infix :refer [compile-expr eval-rpn]]
+            [stencil.segments :as segments]
             [stencil.tokenizer :as tokenizer]
-            [stencil.util :refer [eval-exception]]
+            [stencil.util :refer [eval-exception update-some]]
             [stencil.tree-postprocess :as tree-postprocess]))
 
 (set! *warn-on-reflection* true)
@@ -23,19 +24,27 @@
        (catch Exception e
               (throw (eval-exception (str "Error evaluating expression: " raw-expr) e)))))
 
+;; evaluates the expression of a control item, uses the compiled expression when there is one.
+(defn- eval-item-expr [data function item expr-key]
+  (if-let [compiled (::compiled item)]
+    (try (compiled data function)
+         (catch Exception e
+           (throw (eval-exception (str "Error evaluating expression: " (:raw item)) e))))
+    (eval-rpn* data function (expr-key item) (:raw item))))
+
 (defmethod eval-step :cmd/if [function data item]
-  (let [condition (eval-rpn* data function (:condition item) (:raw item))]
+  (let [condition (eval-item-expr data function item :condition)]
     (log/trace "Condition {} evaluated to {}" (:condition item) condition)
     (->> (if condition (:branch/then item) (:branch/else item))
          (normal-control-ast->evaled-seq data function))))
 
 (defmethod eval-step :cmd/echo [function data item]
-  (let [value (eval-rpn* data function (:expression item) (:raw item))]
+  (let [value (eval-item-expr data function item :expression)]
     (log/trace "Echoing {} as {}" (:expression item) value)
     [{:text (if (instance? clojure.lang.IRecord value) value (str value))}]))
 
 (defmethod eval-step :cmd/for [function data item]
-  (let [items (eval-rpn* data function (:expression item) (:raw item))]
+  (let [items (eval-item-expr data function item :expression)]
     (log/trace "Loop on {} will repeat {} times" (:expression item) (count items))
     (if (not-empty items)
       (let [index-var-name (name (:index-var item))
@@ -48,9 +57,130 @@
         (mapcat (fn [data body] (normal-control-ast->evaled-seq data function body)) datas bodies))
       (:branch/body-run-none item))))
 
-(defn eval-executable [part data functions]
-  (->> (:executable part)
-       (#(doto % assert))
-       (normal-control-ast->evaled-seq data functions)
-       (tokenizer/tokens-seq->document)
-       (tree-postprocess/postprocess)))
+(def ^:private expression-keys {:cmd/if :condition, :cmd/echo :expression, :cmd/for :expression, :cmd/include :name})
+
+(def ^:private branch-keys [:branch/then :branch/else :branch/body-run-none :branch/body-run-once :branch/body-run-next])
+
+(defn- compile-item [item]
+  (if-let [expr-key (expression-keys (:cmd item))]
+    (reduce (fn [item k] (update-some item [k] (partial mapv compile-item)))
+            (assoc item ::compiled (compile-expr (get item expr-key)))
+            branch-keys)
+    item))
+
+;; Compiling the control AST to a render function.
+;; A render function is called with a reducing function, an initial value, the data map and the default function.
+;; It reduces the evaluated tokens in order, branches and loops are direct control flow.
+;; The reducing function must not return a reduced value.
+
+(declare compile-items)
+
+(defn- compile-for [item]
+  (let [body-once      (compile-items (:branch/body-run-once item))
+        body-next      (compile-items (:branch/body-run-next item))
+        body-none      (:branch/body-run-none item)
+        index-var-name (name (:index-var item))
+        loop-var-name  (name (:variable item))]
+    (fn [rf acc data function]
+      (let [items (eval-item-expr data function item :expression)]
+        (log/trace "Loop on {} will repeat {} times" (:expression item) (count items))
+        (if (not-empty items)
+          (if (or (instance? java.util.Map items) (map? items))
+            (loop [acc acc, entries (seq items), body body-once]
+              (if entries
+                (let [entry (first entries)]
+                  (recur (body rf acc (assoc data, index-var-name (key entry), loop-var-name (val entry)) function)
+                         (next entries) body-next))
+                acc))
+            (loop [acc acc, xs (seq items), idx 0, body body-once]
+              (if xs
+                (recur (body rf acc (assoc data, index-var-name idx, loop-var-name (first xs)) function)
+                       (next xs) (inc idx) body-next)
+                acc)))
+          (reduce rf acc body-none))))))
+
+(defn- compile-step [item]
+  (case (:cmd item)
+    :cmd/if
+    (let [then (compile-items (:branch/then item))
+          else (compile-items (:branch/else item))]
+      (fn [rf acc data function]
+        (let [condition (eval-item-expr data function item :condition)]
+          (log/trace "Condition {} evaluated to {}" (:condition item) condition)
+          (if condition
+            (then rf acc data function)
+            (else rf acc data function)))))
+
+    :cmd/echo
+    (fn [rf acc data function]
+      (let [value (eval-item-expr data function item :expression)]
+        (log/trace "Echoing {} as {}" (:expression item) value)
+        (rf acc {:text (if (instance? clojure.lang.IRecord value) value (str value))})))
+
+    :cmd/for
+    (compile-for item)
+
+    ;; other commands are evaluated by their eval-step method
+    (fn [rf acc data function]
+      (reduce rf acc (eval-step function data item)))))
+
+(defn- compile-items [items]
+  (let [steps (->> items
+                   (partition-by (comp boolean :cmd))
+                   (mapcat (fn [group]
+                             (if (:cmd (first group))
+                               (map compile-step group)
+                               (let [tokens (vec group)]
+                                 [(fn [rf acc _ _] (reduce rf acc tokens))]))))
+                   (object-array))
+        n     (alength steps)]
+    (case n
+      0 (fn [_ acc _ _] acc)
+      1 (aget steps 0)
+      (fn [rf acc data function]
+        (loop [i 0, acc acc]
+          (if (< i n)
+            (recur (inc i) (.invoke ^clojure.lang.IFn (aget steps i) rf acc data function))
+            acc))))))
+
+(defn compile-executable
+  "Compiles a result of cleanup/process so that it is not interpreted on every evaluation.
+   Expressions are compiled and the executable gets a render function under the ::render key.
+   With the :segments? option static token runs are also pre-serialized for render-bytes."
+  ([executable] (compile-executable executable {}))
+  ([executable options]
+   (if (:dynamic? executable)
+     (let [items    (mapv compile-item (:executable executable))
+           segments (when (:segments? options) (segments/segment-executable items))]
+       (cond-> (assoc executable
+                      :executable items
+                      ::render (compile-items items))
+         segments (assoc ::segments {:render  (compile-items (:items segments))
+                                     :context (:context segments)})))
+     executable)))
+
+(defn evaled-tokens
+  "Evaluates an executable. Returns a function that is called with a reducing function and an initial value
+   and reduces the evaluated tokens. Uses the render function of compiled executables."
+  [part data functions]
+  (if-let [render (::render part)]
+    (fn [rf init] (render rf init data functions))
+    (let [items (doto (:executable part) assert)]
+      (fn [rf init] (reduce rf init (normal-control-ast->evaled-seq data functions items))))))
+
+(defn eval-executable
+  "Evaluates an executable to an XML tree. Only the postprocess steps needed by the evaluated tokens are run."
+  [part data functions]
+  (let [index          (tree-postprocess/marker-index)
+        reduce-evaled  (evaled-tokens part data functions)
+        tree           (tokenizer/tokens->document
+                        (fn [rf init] (reduce-evaled (tree-postprocess/marking rf index) init)))]
+    (tree-postprocess/postprocess-marked tree @index)))
+
+(defn render-bytes
+  "Evaluates a compiled executable with pre-serialized segments directly to the bytes of the XML document.
+   Returns nil when the executable has no segments or the evaluated tokens of this render need postprocessing,
+   then eval-executable must be used. The executable is not changed, other renders still try the segments."
+  [part data functions]
+  (when-let [{:keys [render context]} (::segments part)]
+    (segments/render-bytes context (fn [rf init] (render rf init data functions)))))
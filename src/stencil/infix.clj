@@ -1,10 +1,10 @@
 (ns stencil.infix
   "Parsing and evaluating infix algebraic expressions.
 
-  https://en.wikipedia.org/wiki/Shunting-yard_algorithm"
-  (:require [stencil.util :refer [->int string whitespace?]]
-            [stencil.functions :refer [call-fn]]
-            [stencil.grammar :as grammar]))
+  https://en.wikipedia.org/wiki/Operator-precedence_parser#Precedence_climbing_method"
+  (:require [stencil.util :refer [->int whitespace?]]
+            [stencil.functions :refer [call-fn]])
+  (:import [java.util.concurrent ConcurrentHashMap]))
 
 (set! *warn-on-reflection* true)
 
@@ -38,13 +38,20 @@
            [\& \&] :and
            [\| \|] :or})
 
-(def digits
-  "Number literals start with these characters"
-  (set "1234567890"))
+(defn- digit? [c]
+  (let [c (char c)] (and (<= (int \0) (int c)) (<= (int c) (int \9)))))
 
-(def identifier
-  "Characters found in an identifier"
-  (set "qwertyuiopasdfghjklzxcvbnmQWERTYUIOPASDFGHJKLZXCVBNM_1234567890"))
+;; number literals are read from these characters
+(defn- number-char? [c]
+  (or (digit? c) (= \. c) (= \_ c)))
+
+;; characters found in an identifier
+(defn- identifier-char? [c]
+  (let [i (int (char c))]
+    (or (digit? c)
+        (= \_ c)
+        (and (<= (int \a) i) (<= i (int \z)))
+        (and (<= (int \A) i) (<= i (int \Z))))))
 
 (def ^:private quotation-marks
   {\" \"   ;; programmer quotes
@@ -54,63 +61,183 @@
    \’ \’   ;; hungarian single quotes (felidezojel)
    \„ \”}) ;; hungarian double quotes (macskakorom)
 
+;; index of the first character from index i that does not match pred
+(defn- skip-while ^long [pred ^String text ^long i]
+  (if (and (< i (.length text)) (pred (.charAt text i)))
+    (recur pred text (inc i))
+    i))
+
 (defn read-string-literal
-  "Reads a string literal from a sequence.
+  "Reads a string literal from the index of the text.
    Returns a tuple.
    - First elem is read string literal.
-   - Second elem is seq of remaining characters."
-  [characters]
-  (when-let [until (quotation-marks (first characters))]
-    (let [sb    (new StringBuilder)]
-      (loop [[c & cs] (next characters)]
-        (cond (nil? c) (throw (ex-info "String parse error"
-                                      {:reason "Unexpected end of stream"}))
-              (= c until)        [(.toString sb) cs]
-              (= c (first "\\")) (do (.append sb (first cs)) (recur (next cs)))
-              :else              (do (.append sb c) (recur cs)))))))
+   - Second elem is the index after the literal."
+  ([text] (read-string-literal text 0))
+  ([^String text ^long i]
+   (when-let [until (quotation-marks (.charAt text i))]
+     (let [until (char until)
+           sb    (new StringBuilder)]
+       (loop [i (inc i)]
+         (if (>= i (.length text))
+           (throw (ex-info "String parse error"
+                           {:reason "Unexpected end of stream"}))
+           (let [c (.charAt text i)]
+             (cond (= c until)            [(.toString sb) (inc i)]
+                   (= c \\)                (if (< (inc i) (.length text))
+                                            (do (.append sb (.charAt text (inc i))) (recur (+ i 2)))
+                                            (recur (inc i)))
+                   :else                  (do (.append sb c) (recur (inc i)))))))))))
 
 (defn read-number
-  "Reads a number literal from a sequence. Returns a tuple of read
-   number (Double or Long) and the sequence of remaining characters."
-  [characters]
-  (when (contains? digits (first characters))
-    (let [content (string (take-while (set "1234567890._")) characters)
-          tail    (drop (count content) characters)]
-      (when-not (contains? identifier (first tail))
-        (let [content (.replaceAll content "_" "")
-              number  (if (some #{\.} content) (parse-double content) (parse-long content))]
-          [number tail])))))
-
-(defn- read-ops2 [chars]
-  (when-let [op (get ops2 [(first chars) (second chars)])]
-    [op (nnext chars)]))
-
-(defn- read-ops1 [chars]
-  (when-let [op (get ops (first chars))]
-    [op (next chars)]))
-
-(defn- read-iden [characters]
-  (when-let [content (not-empty (string (take-while identifier) characters))]
-    [(symbol content) (drop (count content) characters)]))
-
-;; Reads a . character followed by an identifier
-(defn- read-dotted [characters]
-  (when (= \. (first characters))
-    (when-let [content (not-empty (string (take-while identifier) (next characters)))]
-      [[:dot (symbol content)]
-       (drop (count content) (next characters))])))
-
-(def token-readers (some-fn read-number read-string-literal read-iden read-dotted read-ops2 read-ops1))
+  "Reads a number literal from the index of the text. Returns a tuple of read
+   number (Double or Long) and the index after the literal."
+  [^String text ^long i]
+  (when (digit? (.charAt text i))
+    (let [end (skip-while number-char? text i)]
+      (when-not (and (< end (.length text)) (identifier-char? (.charAt text end)))
+        (let [content (.replace (.substring text i end) "_" "")
+              number  (if (.contains content ".") (parse-double content) (parse-long content))]
+          [number end])))))
+
+(defn- read-iden [^String text ^long i]
+  (let [end (skip-while identifier-char? text i)]
+    (when (< i end)
+      [(symbol (.substring text i end)) end])))
 
 (defn tokenize
-  "Returns a sequence of tokens for an input string"
-  [text]
-  (when-let [text (seq (drop-while (comp whitespace? char) text))]
-    (if-let [[token tail] (token-readers text)]
-      (if (vector? token)
-        (concat token (lazy-seq (tokenize tail)))
-        (cons token (lazy-seq (tokenize tail))))
-      (throw (ex-info "Unexpected end of string" {:index (.index ^clojure.lang.IndexedSeq text)})))))
+  "Returns a vector of tokens for an input string"
+  [^String text]
+  (let [length (if text (.length text) 0)]
+    (loop [tokens (transient []), i 0]
+      (let [i (if text (skip-while whitespace? text i) i)]
+        (if (>= i length)
+          (persistent! tokens)
+          (let [c (.charAt text i)]
+            (if-let [[token end] (or (read-number text i)
+                                     (read-string-literal text i)
+                                     (read-iden text i))]
+              (recur (conj! tokens token) (long end))
+              (cond
+                ;; a . character followed by an identifier
+                (and (= \. c) (< (inc i) length) (identifier-char? (.charAt text (inc i))))
+                (let [[token end] (read-iden text (inc i))]
+                  (recur (-> tokens (conj! :dot) (conj! token)) (long end)))
+
+                (and (< (inc i) length) (contains? ops2 [c (.charAt text (inc i))]))
+                (recur (conj! tokens (get ops2 [c (.charAt text (inc i))])) (+ i 2))
+
+                (contains? ops c)
+                (recur (conj! tokens (get ops c)) (inc i))
+
+                :else
+                (throw (ex-info "Unexpected end of string" {:index i}))))))))))
+
+;; Precedence climbing parser over the token vector.
+;; The position of the next token is kept in a one element array.
+
+(def ^:private binary-precedence
+  {:or 1, :and 2, :eq 3, :neq 3, :lt 4, :gt 4, :lte 4, :gte 4, :plus 5, :minus 5, :times 6, :divide 6, :mod 6, :power 7})
+
+(defn- invalid-expression [tokens ^longs pos]
+  (ex-info "Invalid stencil expression!" {:prefix (seq (subvec tokens (min (aget pos 0) (count tokens))))}))
+
+(defn- peek-token [tokens ^longs pos]
+  (nth tokens (aget pos 0) ::end))
+
+(defn- next-token! [tokens ^longs pos]
+  (let [token (peek-token tokens pos)]
+    (aset pos 0 (inc (aget pos 0)))
+    token))
+
+(defn- expect! [tokens pos expected]
+  (when-not (= expected (peek-token tokens pos))
+    (throw (invalid-expression tokens pos)))
+  (next-token! tokens pos))
+
+(defn- expression-start? [token]
+  (or (symbol? token) (number? token) (string? token) (contains? #{:open :minus :not} token)))
+
+(declare parse-expression)
+
+(defn- parse-args [tokens pos]
+  (loop [args [(parse-expression tokens pos 1)]]
+    (if (= :comma (peek-token tokens pos))
+      (do (next-token! tokens pos)
+          (recur (conj args (parse-expression tokens pos 1))))
+      args)))
+
+(defn- parse-value [tokens pos]
+  (let [token (next-token! tokens pos)]
+    (cond
+      (symbol? token)
+      (if (= :open (peek-token tokens pos))
+        (do (next-token! tokens pos)
+            (let [args (when (expression-start? (peek-token tokens pos)) (parse-args tokens pos))]
+              (expect! tokens pos :close)
+              (apply list :fncall token args)))
+        token)
+
+      (= :open token)
+      (let [result (parse-expression tokens pos 1)]
+        (expect! tokens pos :close)
+        result)
+
+      (or (number? token) (string? token))
+      token
+
+      :else
+      (throw (invalid-expression tokens pos)))))
+
+;; a value followed by [..] and .key accessors
+(defn- parse-accesses [tokens pos]
+  (let [value (parse-value tokens pos)]
+    (loop [path []]
+      (case (peek-token tokens pos)
+        :open-bracket (do (next-token! tokens pos)
+                          (let [key (parse-expression tokens pos 1)]
+                            (expect! tokens pos :close-bracket)
+                            (recur (conj path key))))
+        :dot          (do (next-token! tokens pos)
+                          (let [key (next-token! tokens pos)]
+                            (when-not (symbol? key)
+                              (throw (invalid-expression tokens pos)))
+                            (recur (conj path (name key)))))
+        (if (seq path) (apply list :get value path) value)))))
+
+;; negation operand can be another negation
+(defn- parse-negation [tokens pos]
+  (if (= :minus (peek-token tokens pos))
+    (do (next-token! tokens pos)
+        [:minus (parse-negation tokens pos)])
+    (parse-accesses tokens pos)))
+
+;; logical not binds weaker than negation
+(defn- parse-unary [tokens pos]
+  (if (= :not (peek-token tokens pos))
+    (do (next-token! tokens pos)
+        [:not (parse-unary tokens pos)])
+    (parse-negation tokens pos)))
+
+(defn- parse-expression [tokens pos ^long min-precedence]
+  (loop [left (parse-unary tokens pos)]
+    (let [op         (peek-token tokens pos)
+          precedence (long (binary-precedence op 0))]
+      (if (and (pos? precedence) (>= precedence min-precedence))
+        (do (next-token! tokens pos)
+            (if (= :power op)
+              ;; right associative
+              (recur [op left (parse-expression tokens pos precedence)])
+              (recur (list op left (parse-expression tokens pos (inc precedence))))))
+        left))))
+
+(defn- parse-tokens [tokens]
+  (let [pos (long-array 1)]
+    (when (empty? tokens)
+      (throw (invalid-expression tokens pos)))
+    (let [result (parse-expression tokens pos 1)]
+      (when (< (aget pos 0) (count tokens))
+        (throw (invalid-expression tokens pos)))
+      result)))
 
 (defmulti eval-tree (fn [tree] (if (sequential? tree) (first tree) (type tree))))
 
@@ -176,6 +303,112 @@
    (binding [*calc-vars* bindings]
      (eval-tree tree))))
 
-(def parse (comp (partial grammar/parse grammar/expr-lang) tokenize))
+;; Compiling expression trees to closures.
+;; Compiled closures take the data map and the default function, paths are split and operators are
+;; resolved ahead of time. Unknown tree nodes fall back to eval-tree.
+
+(declare compile-tree)
+
+(defn- compile-binary [f a b]
+  (let [a (compile-tree a) b (compile-tree b)]
+    (fn [vars fs] (f (a vars fs) (b vars fs)))))
+
+(defn- compile-get [m path]
+  (let [m    (compile-tree m)
+        path (mapv compile-tree path)]
+    (fn [vars fs]
+      (reduce (fn [b a]
+                (let [a (a vars fs)]
+                  (cond (sequential? b) (when (number? a) (get b (->int a)))
+                        (string? b)     (when (number? a) (get b (->int a)))
+                        (instance? java.util.List b) (when (number? a) (.get ^java.util.List b (->int a)))
+                        :else           (get b (str a)))))
+              (m vars fs) path))))
+
+;; call-fn methods are looked up on every call because they may be defined after the template is prepared.
+(defn- compile-fncall [f args]
+  (let [fn-name (name f)
+        args    (mapv compile-tree args)]
+    (fn [vars fs]
+      (let [args   (mapv (fn [a] (a vars fs)) args)
+            method (get-method call-fn fn-name)]
+        (try
+          (cond (identical? method (get-method call-fn :default))
+                (if fs
+                  (fs fn-name (seq args))
+                  (throw (new IllegalArgumentException (str "Unknown function: " fn-name))))
+
+                (and (identical? method (get-method call-fn "data")) (empty? args))
+                (cond-> vars fs (assoc ::functions fs))
+
+                :else (apply method fn-name args))
+          (catch clojure.lang.ArityException _
+            (throw (ex-info (format "Function '%s' was called with a wrong number of arguments (%d)" f (count args))
+                            {:fn f :args args}))))))))
+
+(defn- compile-tree [tree]
+  (cond
+    (or (number? tree) (string? tree))
+    (fn [_ _] tree)
+
+    (symbol? tree)
+    (let [path (vec (.split (name tree) "\\."))]
+      (fn [vars _] (get-in vars path)))
+
+    (sequential? tree)
+    (let [[op a b] tree]
+      (case op
+        :eq     (compile-binary = a b)
+        :neq    (compile-binary not= a b)
+        :plus   (compile-binary (fn [a b] (if (or (string? a) (string? b)) (str a b) (+ a b))) a b)
+        :minus  (if (= 2 (count tree))
+                  (let [a (compile-tree a)] (fn [vars fs] (- (a vars fs))))
+                  (compile-binary - a b))
+        :times  (compile-binary * a b)
+        :divide (compile-binary (fn [a b] (with-precision 8 (/ a b))) a b)
+        :or     (let [a (compile-tree a) b (compile-tree b)] (fn [vars fs] (or (a vars fs) (b vars fs))))
+        :and    (let [a (compile-tree a) b (compile-tree b)] (fn [vars fs] (and (a vars fs) (b vars fs))))
+        :mod    (compile-binary mod a b)
+        :power  (compile-binary (fn [a b] (Math/pow a b)) a b)
+        :not    (let [a (compile-tree a)] (fn [vars fs] (not (a vars fs))))
+        :gte    (compile-binary >= a b)
+        :lte    (compile-binary <= a b)
+        :gt     (compile-binary > a b)
+        :lt     (compile-binary < a b)
+        :get    (compile-get a (nnext tree))
+        :fncall (compile-fncall a (nnext tree))
+        (fn [vars fs] (eval-rpn (cond-> vars fs (assoc ::functions fs)) tree))))
+
+    :else
+    (fn [vars fs] (eval-rpn (cond-> vars fs (assoc ::functions fs)) tree))))
+
+(defn compile-expr
+  "Compiles a parsed expression tree to a function. The function is called with the same arguments as
+   eval-rpn without the tree and returns the same value."
+  [tree]
+  (let [f (compile-tree tree)]
+    (fn
+      ([bindings default-function]
+       (assert (ifn? default-function))
+       (f bindings default-function))
+      ([bindings]
+       (assert (map? bindings))
+       (f bindings (::functions bindings))))))
+
+;; Parsed expressions are shared by all templates. The cache is emptied when it grows too large.
+(def ^:private parse-cache (new ConcurrentHashMap))
+(def ^:private parse-cache-size 8192)
+
+(defn parse
+  "Parses an expression string into an expression tree. Trees of the same strings are cached."
+  [^String text]
+  (if (nil? text)
+    (parse-tokens (tokenize text))
+    (or (.get ^ConcurrentHashMap parse-cache text)
+        (let [tree (parse-tokens (tokenize text))]
+          (when (>= (.size ^ConcurrentHashMap parse-cache) (long parse-cache-size))
+            (.clear ^ConcurrentHashMap parse-cache))
+          (.put ^ConcurrentHashMap parse-cache text tree)
+          tree))))
 
 :OK
\ No newline at end of file
@@ -1,7 +1,6 @@
 (ns stencil.merger
   "Given a seq of tokens, parses Stencil expressions and creates :action tokens."
-  (:require [clojure.data.xml :as xml]
-            [stencil.postprocess.ignored-tag :as ignored-tag]
+  (:require [stencil.postprocess.ignored-tag :as ignored-tag]
             [stencil
              [util :refer [parsing-exception open-tag close-tag]]
              [tokenizer :as tokenizer]]))
@@ -20,111 +19,131 @@
       {:text source}
       {:action parsed})))
 
-;; Transducer that unwraps {:text .} objects. eg.: [1 2 {:text ab} 3] => [1 2 \a \b 3]
-(defn- map-text-nodes []
+;; The text of the tokens is scanned as strings. Text without the first character of the open tag
+;; is copied in one step. Text and tokens from the start of an open tag are kept in a pending list
+;; until the tag turns out to be a stencil expression or plain text, so open and close tags may span
+;; several text tokens. Consecutive characters of the output are merged into a single text token.
+(defn- scan-runs []
   (fn [rf]
-    (fn ([acc] (rf acc))
-        ([acc x]
-         (if (:text x)
-           (reduce rf acc (:text x))
-           (rf acc x))))))
+    (let [^String open-tag  open-tag
+          ^String close-tag close-tag
+          mode      (volatile! :text) ;; :text, :open (reading open tag) or :action (reading expression)
+          matched   (volatile! 0)     ;; number of characters of the open or close tag read
+          text      (StringBuilder.)  ;; characters of the output not yet emitted
+          pending   (java.util.ArrayList.) ;; strings and tokens read since the start of the open tag
+          inside    (volatile! 0)     ;; size of pending when the expression started
+          chars     (StringBuilder.)  ;; characters of the expression
+          flush     (fn [acc]
+                      (if (pos? (.length text))
+                        (let [s (.toString text)]
+                          (.setLength text 0)
+                          (rf acc {:text s}))
+                        acc))
+          emit      (fn [acc item]
+                      (if (string? item)
+                        (do (.append text ^String item) acc)
+                        (rf (flush acc) item)))
+          emit-all  (fn [acc items] (reduce emit acc items))
+          reset     (fn []
+                      (.clear pending)
+                      (.setLength chars 0)
+                      (vreset! matched 0)
+                      (vreset! mode :text))
+          ;; the close tag is read, the expression is parsed.
+          close!    (fn [acc]
+                      (let [source (.substring chars 0 (- (.length chars) (.length close-tag)))
+                            action (map-action-token {:action source})
+                            items  (vec pending)]
+                        (reset)
+                        (if (:action action)
+                          (emit-all (emit acc action) (remove string? items))
+                          (emit-all acc items))))
+          scan-text (fn [acc ^String s]
+                      (loop [acc acc, i 0]
+                        (if (= i (.length s))
+                          acc
+                          (case @mode
+                            :text
+                            (let [j (.indexOf s (int (.charAt open-tag 0)) (int i))]
+                              (if (neg? j)
+                                (do (.append text s (int i) (.length s)) acc)
+                                (do (.append text s (int i) j)
+                                    (vreset! mode :open)
+                                    (vreset! matched 0)
+                                    (recur acc j))))
 
-(declare parse-upto-open-tag)
+                            :open
+                            (let [m (long @matched)]
+                              (if (= (.charAt s i) (.charAt open-tag m))
+                                (do (.add pending (String/valueOf (.charAt s i)))
+                                    (if (= (inc m) (.length open-tag))
+                                      (do (vreset! mode :action)
+                                          (vreset! inside (.size pending))
+                                          (vreset! matched 0))
+                                      (vreset! matched (inc m)))
+                                    (recur acc (inc i)))
+                                ;; not an open tag, the character is read again as text.
+                                (let [items (vec pending)]
+                                  (reset)
+                                  (recur (emit-all acc items) i))))
 
-;; Constructs a function that reads the inside of a stencil expression until close-tag is reached.
-;; The fn returns a collection when read fully or itself when there are characters left to read.
-(defn- parse-until-close-tag [chars-and-tokens-to-append]
-  (let [expected-close-tag-chars   (volatile! close-tag)
-        buffer-nonclose-chars-only (new java.util.ArrayList)
-        buffer-all-read            (new java.util.ArrayList)]
-    (fn self
-      ([]
-       (when (seq buffer-all-read)
-         (throw (parsing-exception
-                 "" (apply str "Stencil tag is not closed. Reading " open-tag buffer-nonclose-chars-only)))))
-      ([token]
-       (.add buffer-all-read token)
-       (if (= token (first @expected-close-tag-chars))
-         (when-not (vswap! expected-close-tag-chars next)
-           (let [action (map-action-token {:action (apply str buffer-nonclose-chars-only)})]
-             (if (:action action)
-               (parse-upto-open-tag (concat [action]
-                                            (remove char? chars-and-tokens-to-append)
-                                            (remove char? buffer-all-read)))
-               (parse-upto-open-tag (concat (vec chars-and-tokens-to-append)
-                                            (vec buffer-all-read))))))
-         (when (char? token)
-           (vreset! expected-close-tag-chars close-tag)
-           (.clear buffer-nonclose-chars-only)
-           (.addAll buffer-nonclose-chars-only (filter char? buffer-all-read))
-           self))))))
+                            :action
+                            (let [m (long @matched)
+                                  j (if (zero? m) (.indexOf s (int (.charAt close-tag 0)) (int i)) (int i))
+                                  j (if (neg? j) (.length s) j)]
+                              (.append chars s (int i) j)
+                              (.add pending (.substring s (int i) j))
+                              (cond
+                                (= j (.length s))
+                                acc
 
-;; Similar to the fn above. Consumes tokens up to the first open tag, then returns another parser (trampoline style).
-(defn- parse-upto-open-tag [prepend]
-  (let [expected-open-tag-chars (volatile! open-tag)
-        buffer                  (new java.util.ArrayList ^java.util.Collection prepend)]
-    (fn self
-      ([] buffer)
-      ([token]
-       (if (= token (first @expected-open-tag-chars))
-         (if (= open-tag @expected-open-tag-chars)
-           (let [already-read (vec buffer)]
-             (.clear buffer)
-             (.add buffer token)
-             (vswap! expected-open-tag-chars next)
-             already-read)
-           (do (.add buffer token)
-               (when-not (vswap! expected-open-tag-chars next) ; for cases when |open-tag|>2
-                 (parse-until-close-tag buffer))))
-         (if (= open-tag @expected-open-tag-chars)
-           (let [result (concat (vec buffer) [token])]
-             (.clear buffer) ;; reading an open-tag from start => we dump the content of buffer
-             result)
-           (if (char? token)
-             (let [out (vec buffer)]
-               (vreset! expected-open-tag-chars open-tag)
-               (.clear buffer)
-               (if (= token (first @expected-open-tag-chars))
-                 (do (.add buffer token)
-                     (vswap! expected-open-tag-chars next)
-                     out)
-                 (concat out [token])))
-             (do (.add buffer token)
-                 self))))))))
+                                (= (.charAt s j) (.charAt close-tag m))
+                                (do (.append chars (.charAt s j))
+                                    (.add pending (String/valueOf (.charAt s j)))
+                                    (if (= (inc m) (.length close-tag))
+                                      (recur (close! acc) (inc j))
+                                      (do (vswap! matched inc)
+                                          (recur acc (inc j)))))
 
-;; Constructs a transducer that uses the trampoline function to process elements
-(defn- parser-trampoline [initial-trampoline]
-  (fn [rf]
-    (let [trampoline (volatile! initial-trampoline)]
-      (fn ([acc] (rf (reduce rf acc (@trampoline))))
+                                ;; the character is not checked again for the start of the close tag
+                                :else
+                                (do (.append chars (.charAt s j))
+                                    (.add pending (String/valueOf (.charAt s j)))
+                                    (vreset! matched 0)
+                                    (recur acc (inc j)))))))))]
+      (fn ([acc]
+           (rf (case @mode
+                 :text   (flush acc)
+                 :open   (let [items (vec pending)]
+                           (reset)
+                           (flush (emit-all acc items)))
+                 :action (if (> (.size pending) (long @inside))
+                           (throw (parsing-exception
+                                   "" (str "Stencil tag is not closed. Reading " open-tag
+                                           (.substring chars 0 (- (.length chars) (long @matched))))))
+                           (flush acc)))))
           ([acc token]
-           (let [result (@trampoline token)]
-             (if (fn? result)
-               (do (vreset! trampoline result) acc)
-               (reduce rf acc result))))))))
-
-;; Transducer that merges consecutive characters into a text token, eg.: (1 \a \b \c 2) to (1 {:text "abc"} 2)
-(defn- unmap-text-nodes []
-  (let [state (volatile! true)]
-    (comp (partition-by (fn [x] (when-not (char? x) (vswap! state not))))
-          (map (fn [x] (if (char? (first x)) {:text (apply str x)} (first x)))))))
+           (if-let [s (:text token)]
+             (scan-text acc s)
+             (if (= :text @mode)
+               (rf (flush acc) token)
+               (do (.add pending token) acc))))))))
 
 (defn cleanup-runs [tokens-seq]
-  (eduction (comp (map-text-nodes)
-                  (parser-trampoline (parse-upto-open-tag []))
-                  (unmap-text-nodes))
-            tokens-seq))
+  (eduction (scan-runs) tokens-seq))
 
 (defn- map-token [token] (:action token token))
 
 (defn parse-to-tokens-seq
-  "Parses input and returns a token sequence."
+  "Parses input and returns a token sequence.
+   The Ignorable and Requires attributes hold namespace aliases, the uri -> alias map of the
+   aliases to declare on the evaluated document is stored on the first token when not empty."
   [input]
-  (->> input
-       (xml/parse)
-       (ignored-tag/map-ignored-attr)
-       (tokenizer/structure->seq)
-       (cleanup-runs)
-       (eduction (map map-token))))
+  (let [found   (volatile! {})
+        tokens  (tokenizer/read-tokens input (partial ignored-tag/prepare-element-attrs found))
+        aliases @found]
+    (->> (cond-> tokens (seq aliases) (update 0 assoc ::ignored-tag/aliases aliases))
+         (cleanup-runs)
+         (eduction (map map-token)))))
 
 :OK
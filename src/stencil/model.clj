@@ -2,159 +2,284 @@
   "Handling the meta-model of OOXML documents.
    See: http://officeopenxml.com/anatomyofOOXML.php
   "
+  (:import [io.github.erdos.stencil.impl SpoolOutputStream]
+           [java.io Closeable])
   (:require [clojure.data.xml :as xml]
             [clojure.java.io :as io :refer [file]]
             [stencil.eval :as eval]
             [stencil.infix :refer [eval-rpn]]
             [stencil.merger :as merger]
-            [stencil.util :refer [unlazy-tree]]
-            [stencil.model.common :refer [->xml-writer resource-copier]]
+            [stencil.util :refer [fork-join-invoke unlazy-tree update-some]]
+            [stencil.model.common :refer [->xml-writer bytes-writer resource-copier source-file source-stream]]
             [stencil.ooxml :as ooxml]
             [stencil.model [numbering :as numbering] [relations :as relations]
              [style :as style] [content-types :as content-types] [fragments :as fragments]]
             [stencil.cleanup :as cleanup]
+            [stencil.streaming :as streaming]
             [stencil.fs :as fs]))
 
 (set! *warn-on-reflection* true)
 
 (defn ->exec [xml-streamable]
-  (with-open [stream (io/input-stream xml-streamable)]
+  (with-open [stream (source-stream xml-streamable)]
     (-> (merger/parse-to-tokens-seq stream)
         (cleanup/process)
         #_(select-keys [:variables :dynamic? :executable :fragments]))))
 
 (defn- ->submodel [dir f]
-  {::path       (fs/unix-path (fs/unroll f))
-   :source-file (file dir f)
-   :executable  (->exec (file dir f))
-   :relations   (relations/->rels dir f)})
+  (let [path (fs/unix-path (fs/unroll f))
+        src  (source-file dir path)]
+    {::path       path
+     :source-file src
+     :executable  (->exec src)
+     :relations   (relations/->rels dir f)}))
 
 (defn- assoc-slide-layouts-notes [main-document dir]
   (->> (for [hf     (:headers+footers main-document)
              :when  (:relations hf)
              target (relations/targets-by-type (:relations hf)
                                                #{relations/rel-type-slide-layout relations/rel-type-notes-slide})]
-         (->submodel dir (file (fs/parent-file (file (::path hf))) target)))
-       (doall)
+         #(->submodel dir (file (fs/parent-file (file (::path hf))) target)))
+       (fork-join-invoke)
        (assoc main-document ::slide-layouts)))
 
-(defn load-template-model [dir, options-map]
-  (assert (fs/exists? dir))
-  (assert (fs/directory? dir))
+(defn load-template-model
+  "Builds the model of a template. The dir parameter is either the directory of
+   the unzipped template file or a ZipArchive instance of the template.
+   The main document and the header, footer and slide parts are prepared concurrently."
+  [dir, options-map]
+  (assert (some? dir))
   (assert (map? options-map))
-  (let [main-rels          (relations/->rels dir nil)
-        [main-document]    (relations/targets-by-type main-rels #{relations/rel-type-main})
-        main-document-rels (relations/->rels dir main-document)
-        ->exec (binding [merger/*only-includes* (boolean (:only-includes options-map))]
-                 (bound-fn* ->exec))]
-    {:content-types (content-types/parse-content-types dir)
-     :source-folder dir
-     :relations     main-rels
-     :main          (-> {::path       main-document
-                         :source-file (file dir main-document)
-                         :executable  (->exec (file dir main-document))
-                         :relations   main-document-rels
-                         :headers+footers (doall
-                                           (for [t (relations/targets-by-type main-document-rels relations/extra-relations)]
-                                             (->submodel dir (fs/unroll (file (fs/parent-file (file main-document)) t)))))}
-                        (assoc-slide-layouts-notes dir)
-                        (style/assoc-style dir)
-                        (numbering/assoc-numbering dir))}))
+  (binding [merger/*only-includes* (boolean (:only-includes options-map))]
+    (let [main-rels          (relations/->rels dir nil)
+          [main-document]    (relations/targets-by-type main-rels #{relations/rel-type-main})
+          _                  (assert main-document "Main document relation is missing!")
+          main-document-rels (relations/->rels dir main-document)
+          [main-executable & headers+footers]
+          (fork-join-invoke
+           (cons #(->exec (source-file dir main-document))
+                 (for [t (relations/targets-by-type main-document-rels relations/extra-relations)]
+                   #(->submodel dir (fs/unroll (file (fs/parent-file (file main-document)) t))))))]
+      {:content-types (content-types/parse-content-types dir)
+       :source-folder dir
+       :relations     main-rels
+       :main          (-> {::path       main-document
+                           :source-file (source-file dir main-document)
+                           :executable  main-executable
+                           :relations   main-document-rels
+                           :headers+footers (vec headers+footers)}
+                          (assoc-slide-layouts-notes dir)
+                          (style/assoc-style dir)
+                          (numbering/assoc-numbering dir))})))
 
 
+(declare template-writers)
+
+(defn compile-model
+  "Compiles the executables of all parts of a loaded model. The result is only used for rendering.
+   Static parts of template documents are also pre-serialized when the :segments? option is set.
+   Fragments are not pre-serialized, because their evaluated XML tree is inserted in the template.
+   With the :streaming? option the main document is marked when it can be rendered with streaming.
+   The writers map of the parts that are copied unchanged is also computed here, renders only add the evaluated parts."
+  ([model] (compile-model model {}))
+  ([model options]
+   (let [compile-part (fn [part] (update-some part [:executable] #(eval/compile-executable % options)))]
+     (-> model
+         (update :main compile-part)
+         (cond-> (:streaming? options)
+           (update :main #(assoc % ::streamable? (streaming/streamable? (:executable %)))))
+         (update-some [:main :headers+footers] (partial mapv compile-part))
+         (update-some [:main ::slide-layouts] (partial mapv compile-part))
+         (as-> model (assoc model ::writers (template-writers model)))))))
+
+
+(declare extract-body-parts)
+
+;; The body of a fragment without stencil commands is read once, when the fragment is first included.
+(defn- assoc-static-body [model]
+  (if (:dynamic? (:executable (:main model)))
+    model
+    (assoc-in model [:main ::static-body]
+              (delay (with-open [reader (source-stream (:source-file (:main model)))]
+                       (extract-body-parts (unlazy-tree (xml/parse reader))))))))
+
 (defn load-fragment-model [dir options-map]
   (-> (load-template-model dir options-map)
       ;; Headers and footers are not used in fragments.
-      (update :main dissoc :headers+footers)))
+      (update :main dissoc :headers+footers)
+      (assoc-static-body)))
 
 
 (defn- eval-model-part-exec [part data functions]
   (assert (:executable part))
   (assert (:dynamic? part))
-  (let [[result fragments] (fragments/with-sub-fragments (eval/eval-executable part data functions))]
-    {:xml    result
-     :fragment-names fragments
-     :writer (->xml-writer result)}))
+  (if-let [bytes (eval/render-bytes part data functions)]
+    {:writer (bytes-writer bytes)}
+    (let [[result fragments] (fragments/with-sub-fragments (eval/eval-executable part data functions))]
+      {:xml    result
+       :fragment-names fragments
+       :writer (->xml-writer result)})))
+
+
+;; content of streamed parts above this size is kept in a temporary file until written.
+(def ^:private stream-memory-limit (* 1024 1024))
+
+(defn- eval-model-part-stream [part data functions options-map]
+  (let [spool (new SpoolOutputStream stream-memory-limit (:temporary-directory options-map))]
+    (try
+      (let [[_ fragments] (fragments/with-sub-fragments
+                            (streaming/render-stream! part data functions spool))]
+        (.close spool)
+        ;; the content is kept until the evaluated document is closed
+        {:fragment-names fragments
+         :writer (reify
+                   clojure.lang.IFn
+                   (invoke [_ output-stream]
+                     (let [stream (io/output-stream output-stream)]
+                       (.writeTo spool stream)
+                       (.flush stream)))
+                   Closeable
+                   (close [_] (.delete spool)))})
+      (catch Throwable t
+        (.delete spool)
+        (throw t)))))
 
 
-(defn- eval-model-part [part data functions]
+(defn- eval-model-part [part data functions options-map]
   (assert (:executable part))
   (assert (::path part))
-  (if (:dynamic? (:executable part))
+  (cond
+    (and (:streaming? options-map) (::streamable? part))
+    (eval-model-part-stream (:executable part) data functions options-map)
+
+    (:dynamic? (:executable part))
     (eval-model-part-exec (:executable part) data functions)
+
+    :else
     {:writer (resource-copier part)
      :xml-delay (delay
-                  (with-open [reader (io/input-stream (:source-file part))]
+                  (with-open [reader (source-stream (:source-file part))]
                     (unlazy-tree (xml/parse reader))))}))
 
 
-(defn- eval-template-model [template-model data functions fragments]
+(defn- eval-template-model [template-model data functions fragments options-map]
   (assert (:main template-model) "Should be a result of load-template-model call!")
   (assert (some? fragments))
-  (fragments/with-fragments fragments
+  (fragments/with-fragments (merge fragments (::fragments template-model)) (::includes template-model)
     (content-types/with-content-types
       (style/with-styles-context template-model
         (numbering/with-numbering-context template-model
-          (let [evaluate  (fn [m]
-                            (relations/with-extra-files-context
-                              (let [result         (eval-model-part m data functions)
-                                    fragment-names (set (:fragment-names result))]
-                                (-> m
-                                    (relations/model-assoc-extra-files fragment-names)
-                                    (assoc :result result)))))]
-            (-> template-model
-                (update-in [:main :headers+footers] (partial mapv evaluate))
-                (update-in [:main ::slide-layouts] (partial mapv evaluate))
-                (update :main evaluate))))))))
+          (relations/with-extra-files-cache
+            (let [evaluate  (fn [m]
+                              (relations/with-extra-files-context
+                                (let [result         (eval-model-part m data functions options-map)
+                                      fragment-names (set (:fragment-names result))]
+                                  (-> m
+                                      (relations/model-assoc-extra-files fragment-names)
+                                      (assoc :result result)))))]
+              (if (:parallel? options-map)
+                ;; parts only share the style, numbering, fragment and extra file contexts, that are safe to update concurrently.
+                (let [main                 (:main template-model)
+                      [evaled-main & parts] (fork-join-invoke
+                                             (for [m (concat [main] (:headers+footers main) (::slide-layouts main))]
+                                               #(evaluate m)))
+                      [headers+footers slide-layouts] (split-at (count (:headers+footers main)) parts)]
+                  (assoc template-model :main
+                         (assoc evaled-main
+                                :headers+footers (vec headers+footers)
+                                ::slide-layouts (vec slide-layouts))))
+                (-> template-model
+                    (update-in [:main :headers+footers] (partial mapv evaluate))
+                    (update-in [:main ::slide-layouts] (partial mapv evaluate))
+                    (update :main evaluate))))))))))
 
 (defn- model-seq [model]
   (let [model-keys [:relations :headers+footers :main :style :content-types :fragments ::numbering :result ::slide-layouts]]
     (tree-seq map? (fn [node] (flatten (keep node model-keys))) model)))
 
 
+;; paths of the relation targets of a relations file
+(defn- relation-paths [part-path relations]
+  (let [path-parent (some-> part-path file fs/parent-file)]
+    (for [relation (vals (:parsed relations))
+          :when (not= "External" (::mode relation))]
+      [(fs/unix-path (fs/unroll (file path-parent (::target relation)))) relation])))
+
+
+;; writers of relation targets that are not in the result yet or have their own writer
+(defn- relation-writers [result source-folder part-path relations]
+  (for [[path relation] (relation-paths part-path relations)
+        :when (or (:writer relation) (not (contains? result path)))
+        :let [src (or (:source-file relation)
+                      (source-file source-folder path))]]
+    [path (or (:writer relation)
+              (resource-copier {::path path :source-file src}))]))
+
+
 ;; returns a map where key is path and value is writer fn.
-(defn- evaled-template-model->writers-map [evaled-template-model]
+(defn- template-writers
+  "Returns the writers map of a template before it is evaluated. Every part is copied from the template source,
+   parts that are only written from the model are added when the template is evaluated."
+  [model]
   (as-> (sorted-map) result
 
-    ;; relations files that are created on-the-fly
-    (into result
-          (for [m (model-seq evaled-template-model)
-                :when (::path m)
-                :when (:parsed (:relations m))
-                :when (not (:source-file (:relations m)))]
-            [(::path (:relations m)) (relations/writer (:parsed (:relations m)))]))
-
     ;; create writer for every item where ::path is specified
     (into result
-          (for [m (model-seq evaled-template-model)
+          (for [m (model-seq model)
                 :when (::path m)
-                :when (not= "External" (::mode m))
-                :when (not (contains? result (::path m)))]
-            [(::path m) (or (:writer (:result m)) (resource-copier m))]))
+                :when (:source-file m)
+                :when (not= "External" (::mode m))]
+            [(::path m) (resource-copier m)]))
 
     ;; find all items in all relations
     (into result
-          (for [m (model-seq evaled-template-model)
-                :when (:relations m) ;:when (::path m)
-                :let [src-parent  (delay (file (or (:source-folder m)
-                                                   (fs/parent-file (file (:source-file m))))))
-                      path-parent (some-> m ::path file fs/parent-file)]
-                relation (vals (:parsed (:relations m)))
-                :when (not= "External" (::mode relation))
-                :let [path (fs/unix-path (fs/unroll (file path-parent (::target relation))))]
-                :when (or (:writer relation) (not (contains? result path)))
-                :let [src (or (:source-file relation) (file @src-parent (::target relation)))]]
-            [path (or (:writer relation)
-                      (resource-copier {::path path :source-file src}))]))))
+          (for [m (model-seq model)
+                :when (:relations m)
+                entry (relation-writers result (:source-folder model) (::path m) (:relations m))]
+            entry))))
+
+
+;; parts that may get a writer or new relations when the template is evaluated
+(defn- evaluated-parts [evaled-template-model]
+  (let [main (:main evaled-template-model)]
+    (filter ::path (concat [(:content-types evaled-template-model) main (:style main) (::numbering main)]
+                           (:headers+footers main)
+                           (::slide-layouts main)))))
+
+
+(defn- overlay-writers
+  "Adds the writers of the evaluated parts, the rendered relations files and the new relation targets
+   to the writers map of the template."
+  [template-writers evaled-template-model]
+  (let [parts         (evaluated-parts evaled-template-model)
+        rendered-rels (filter (fn [m] (let [r (:relations m)] (and (:parsed r) (not (:source-file r))))) parts)]
+    (as-> template-writers result
+      (into result
+            (for [m rendered-rels]
+              [(::path (:relations m)) (relations/relations-writer (:relations m))]))
+      (into result
+            (for [m parts
+                  :let [writer (:writer (:result m))]
+                  :when writer]
+              [(::path m) writer]))
+      ;; relations files that are not rendered are the same as in the template
+      (into result
+            (for [m rendered-rels
+                  entry (relation-writers result (:source-folder evaled-template-model) (::path m) (:relations m))]
+              entry)))))
 
 
 (defn template-model->writers-map
-  "Evaluates a prepared template and returns a {path writer-fn} map that can be used to write the zip stream."
-  [template data function fragments]
-  (assert (map? data))
-  (-> template
-      (eval-template-model data function fragments)
-      (evaled-template-model->writers-map)))
+  "Evaluates a prepared template and returns a {path writer-fn} map that can be used to write the zip stream.
+   When :parallel? is set in the options map then the parts of the document are evaluated concurrently.
+   The writers of the unchanged parts are taken from the compiled model when present."
+  ([template data function fragments]
+   (template-model->writers-map template data function fragments {}))
+  ([template data function fragments options-map]
+   (assert (map? data))
+   (assert (map? options-map))
+   (->> (eval-template-model template data function fragments options-map)
+        (overlay-writers (or (::writers template) (template-writers template))))))
 
 
 (defn- extract-body-parts [xml-tree]
@@ -181,28 +306,77 @@
 ;   (xml-map-attrs {ooxml/r-embed id-rename ooxml/r-id id-rename} item))
 
 
+(defn- numbered? [parts]
+  (some #(= ooxml/attr-numId (:tag %)) (mapcat (partial tree-seq map? :content) parts)))
+
+
+;; Computed on the first include of a fragment while rendering a template: the new style and relation ids.
+;; The body parts of static fragments are also renamed here, so later includes only copy numberings.
+(defn- prepare-include [fragment-model frag-name]
+  (let [style-ids-rename    (-> fragment-model :main :style :parsed (doto assert) (style/insert-styles!))
+        relation-ids-rename (relations/ids-rename fragment-model frag-name)
+        relation-rename-map (into {} (map (juxt :old-id :new-id)) relation-ids-rename)
+        rename              (fn [part]
+                              (->> part
+                                   (relations/xml-rename-relation-ids relation-rename-map)
+                                   (style/xml-rename-style-ids style-ids-rename)))
+        static-parts        (some->> (::static-body (:main fragment-model)) (force) (mapv rename))]
+    {:relation-ids-rename relation-ids-rename
+     :rename              rename
+     :static-parts        static-parts
+     :numbered?           (boolean (or (nil? static-parts) (numbered? static-parts)))}))
+
+
 (defmethod eval/eval-step :cmd/include [function local-data-map step]
   (assert (map? local-data-map))
-  (let [frag-name        (eval-rpn local-data-map function (:name step))
+  (let [frag-name        (if-let [compiled (::eval/compiled step)]
+                           (compiled local-data-map function)
+                           (eval-rpn local-data-map function (:name step)))
         fragment-model   (fragments/use-fragment frag-name)
-        style-ids-rename (-> fragment-model :main :style :parsed (doto assert) (style/insert-styles!))
+        {:keys [relation-ids-rename rename static-parts numbered?]}
+        (fragments/cached-include frag-name #(prepare-include fragment-model frag-name))
 
-        relation-ids-rename (relations/ids-rename fragment-model frag-name)
-        relation-rename-map (into {} (map (juxt :old-id :new-id)) relation-ids-rename)
+        ;; every include gets its own copies of the numberings
+        copy-numberings  (if numbered?
+                           (partial xml-map-attrs
+                                    {ooxml/attr-numId
+                                     (partial numbering/copy-numbering fragment-model (atom {}))})
+                           identity)
 
-        ;; evaluate
-        evaled (eval-template-model fragment-model local-data-map function {})
-
-        ;; write back
-        get-xml      (fn [x] (or (:xml x) @(:xml-delay x)))
-        evaled-parts (->> evaled :main :result
-                          (get-xml)
-                          (extract-body-parts)
-                          (map (partial relations/xml-rename-relation-ids relation-rename-map))
-                          (map (partial xml-map-attrs
-                                        {ooxml/attr-numId
-                                         (partial numbering/copy-numbering fragment-model (atom {}))}))
-                          (map (partial style/xml-rename-style-ids style-ids-rename))
-                          (doall))]
+        evaled-parts (if static-parts
+                       (mapv copy-numberings static-parts)
+                       ;; evaluate and write back
+                       (let [evaled  (eval-template-model fragment-model local-data-map function {} {})
+                             get-xml (fn [x] (or (:xml x) @(:xml-delay x)))]
+                         (->> evaled :main :result
+                              (get-xml)
+                              (extract-body-parts)
+                              (map rename)
+                              (map copy-numberings)
+                              (doall))))]
     (run! relations/add-extra-file! relation-ids-rename)
     [{:text (fragments/->FragmentInvoke {:frag-evaled-parts evaled-parts})}]))
+
+
+(defn link-fragments
+  "Resolves the includes with literal fragment names of a template model when the fragments are known
+   before rendering. The styles of the fragments are merged into the style definitions of the template
+   and their relations are added to the parts that include them. Renders use the prepared includes
+   and only copy the numberings of the fragments."
+  [model fragments]
+  (assert (map? fragments))
+  (let [parts    (cons (:main model) (:headers+footers (:main model)))
+        linked?  (fn [name] (and (contains? fragments name) (not (contains? (::fragments model) name))))
+        names    (into (sorted-set) (comp (mapcat (comp :fragments :executable)) (filter linked?)) parts)
+        styles   (atom (:parsed (:style (:main model))))
+        includes (binding [style/*current-styles* styles]
+                   (into {} (for [n names] [n (prepare-include (get fragments n) n)])))
+        link-part (fn [part]
+                    (relations/link-extra-files
+                     part (mapcat (comp :relation-ids-rename includes) (:fragments (:executable part)))))]
+    (-> model
+        (update :main link-part)
+        (update-some [:main :headers+footers] (partial mapv link-part))
+        (update-some [:main :style] #(style/link-styles % @styles))
+        (update ::fragments merge (select-keys fragments names))
+        (update ::includes merge includes))))
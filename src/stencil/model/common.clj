@@ -1,21 +1,116 @@
 (ns stencil.model.common
-  (:import [java.nio.file Files])
-  (:require [clojure.data.xml :as xml]
-            [clojure.java.io :as io]))
+  (:import [java.io ByteArrayOutputStream File InputStream]
+           [io.github.erdos.stencil.impl ZipArchive ZipArchive$Entry])
+  (:require [clojure.java.io :as io]
+            [stencil.emit :as emit]
+            [stencil.fs :as fs]))
 
+(set! *warn-on-reflection* true)
 
 (defn ->xml-writer [tree]
   (fn [output-stream]
-    (let [writer (io/writer output-stream)]
-      (xml/emit tree writer)
-      (.flush writer))))
+    (emit/emit! tree (io/output-stream output-stream))))
 
 
-(defn resource-copier [x]
+(defn bytes-writer
+  "Returns a writer fn that writes the already serialized content of a part."
+  [^bytes content]
+  (assert (bytes? content))
+  (fn [output-stream]
+    (let [stream (io/output-stream output-stream)]
+      (.write stream content)
+      (.flush stream))))
+
+
+(defn prepare-xml
+  "Serializes an XML tree when the template is prepared, so that rendering only copies the bytes.
+   Returns a map of the bytes, the root element without content, the prefix map of the root element
+   and the offset of the closing tag of the root element."
+  [tree]
+  (let [out   (ByteArrayOutputStream.)
+        _     (emit/emit! tree out)
+        bytes (.toByteArray out)
+        ;; less-than characters are escaped in text, so the last one starts the closing tag of the root.
+        start (loop [i (dec (alength bytes))]
+                (if (== (int \<) (aget bytes i)) i (recur (dec i))))]
+    {:bytes    bytes
+     :root     (assoc tree :content nil)
+     ;; kept apart from the metadata of the root, that is not stored in snapshots
+     :prefixes (emit/root-prefixes tree)
+     :offset   (when (== (int \/) (aget bytes (inc start))) start)}))
+
+
+(defn appending-writer
+  "Returns a writer fn of a tree prepared with prepare-xml where the nodes are inserted after the last child
+   of the root element. Only the inserted nodes are serialized."
+  [prepared nodes]
+  (let [{:keys [^bytes bytes root prefixes offset]} prepared]
+    (cond (empty? nodes) (bytes-writer bytes)
+          (nil? offset)  (->xml-writer (with-meta (assoc root :content (vec nodes)) {:clojure.data.xml/nss prefixes}))
+          :else          (fn [output-stream]
+                           (let [stream (io/output-stream output-stream)
+                                 offset (int offset)]
+                             (.write stream bytes 0 offset)
+                             (emit/emit-children! prefixes nodes stream)
+                             (.write stream bytes offset (- (alength bytes) offset))
+                             (.flush stream))))))
+
+
+(defn append-xml
+  "Returns a tree prepared with prepare-xml where the nodes are inserted after the last child of the root element."
+  [prepared nodes]
+  (let [{:keys [^bytes bytes root prefixes offset]} prepared]
+    (cond (empty? nodes) prepared
+          (nil? offset)  (prepare-xml (with-meta (assoc root :content (vec nodes)) {:clojure.data.xml/nss prefixes}))
+          :else          (let [out (ByteArrayOutputStream.)]
+                           ((appending-writer prepared nodes) out)
+                           (assoc prepared
+                                  :bytes  (.toByteArray out)
+                                  :offset (+ (long offset) (- (.size out) (alength bytes))))))))
+
+
+(defn source-file
+  "Finds a part of the template source by its path. Returns nil when the part does not exist.
+   The source is either a directory of the unzipped template or a ZipArchive instance."
+  [source ^String path]
+  (assert (string? path))
+  (cond (instance? ZipArchive source)
+        (.getEntry ^ZipArchive source path)
+
+        (instance? File source)
+        (let [f (io/file source path)]
+          (when (fs/exists? f) f))
+
+        :else
+        (throw (ex-info "Unexpected template source!" {:source source}))))
+
+
+(defn source-stream
+  "Opens an input stream of a part returned by source-file. Caller must close the stream."
+  ^InputStream [part]
+  (if (instance? ZipArchive$Entry part)
+    (.openStream ^ZipArchive$Entry part)
+    (io/input-stream part)))
+
+
+(defn resource-copier
+  "Returns a writer fn that copies a part of the template source unchanged.
+   When the part is an archive entry, the entry is also stored in the metadata of the writer so that
+   the zip writer can copy the compressed bytes without inflating them. See raw-entry."
+  [x]
   (assert (:stencil.model/path x))
   (assert (:source-file x))
-  (fn [writer]
-    (let [stream (io/output-stream writer)]
-      (Files/copy (.toPath (io/file (:source-file x))) stream)
-      (.flush stream)
-      nil)))
+  (-> (fn [writer]
+        (let [stream (io/output-stream writer)]
+          (with-open [in (source-stream (:source-file x))]
+            (io/copy in stream :buffer-size 8192))
+          (.flush stream)
+          nil))
+      (with-meta (when (instance? ZipArchive$Entry (:source-file x))
+                   {::raw-entry (:source-file x)}))))
+
+
+(defn raw-entry
+  "Returns the archive entry of a writer fn created by resource-copier, or nil."
+  ^ZipArchive$Entry [writer]
+  (::raw-entry (meta writer)))
@@ -1,8 +1,6 @@
 (ns stencil.model.content-types
   (:require [clojure.data.xml :as xml]
-            [clojure.java.io :refer [file input-stream]]
-            [stencil.fs :as fs]
-            [stencil.model.common :refer [->xml-writer]]))
+            [stencil.model.common :refer [->xml-writer bytes-writer prepare-xml source-file source-stream]]))
 
 (set! *warn-on-reflection* true)
 
@@ -18,7 +16,7 @@
 
 
 (defn- parse-ct-file [content-types-file]
-  (with-open [reader (input-stream (file content-types-file))]
+  (with-open [reader (source-stream content-types-file)]
     (let [parsed (xml/parse reader)]
       (assert (= "Types" (name (:tag parsed))))
       (reduce (fn [m elem]
@@ -28,25 +26,37 @@
               {} (remove string? (:content parsed)))))) ;; rm empty strings
 
 
+(def ^:private content-types-path "[Content_Types].xml")
+
+(defn- content-types-tree [parsed]
+  {:tag tag-types
+   :attrs {:xmlns xmlns}
+   :content (concat (for [[k v] (::default parsed)]
+                      {:tag tag-default :attrs {attr-extension k attr-content-type v}})
+                    (for [[k v] (::override parsed)]
+                      {:tag tag-override :attrs {attr-part-name k attr-content-type v}}))})
+
 (defn parse-content-types [dir]
-  (assert (fs/directory? dir))
-  (let [cts (file dir "[Content_Types].xml")]
-    (assert (fs/exists? cts))
-    (assert (.isFile cts))
-    {:parsed                   (parse-ct-file cts)
-     :stencil.model/path       (.getName cts)}))
+  (let [cts (source-file dir content-types-path)]
+    (assert cts "Missing [Content_Types].xml file!")
+    (let [parsed (parse-ct-file cts)]
+      {:parsed                   parsed
+       ;; written as it is unless an override is added while rendering
+       :bytes                    (:bytes (prepare-xml (content-types-tree parsed)))
+       :stencil.model/path       content-types-path})))
 
 
 (defn with-content-types [model]
-  (let [parsed (-> model :content-types :parsed)
-        tree   {:tag tag-types
-                :attrs {:xmlns xmlns}
-                :content (concat (for [[k v] (::default parsed)]
-                                   {:tag tag-default :attrs {attr-extension k attr-content-type v}})
-                                 (for [[k v] (::override parsed)]
-                                   {:tag tag-override :attrs {attr-part-name k attr-content-type v}}))}]
-    (assoc-in model [:content-types :result :writer] (->xml-writer tree))))
+  (let [{:keys [parsed bytes]} (:content-types model)]
+    (assoc-in model [:content-types :result :writer]
+              (if bytes
+                (bytes-writer bytes)
+                (->xml-writer (content-types-tree parsed))))))
 
 
 (defn assoc-override [model path mime-type]
-  (assoc-in model [:content-types :parsed ::override path] mime-type))
+  (if (= mime-type (get-in model [:content-types :parsed ::override path]))
+    model
+    (-> model
+        (assoc-in [:content-types :parsed ::override path] mime-type)
+        (update :content-types dissoc :bytes))))
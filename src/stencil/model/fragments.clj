@@ -10,10 +10,29 @@
 ;; set of already inserted fragment ids.
 (def ^:dynamic *inserted-fragments* nil)
 
-(defmacro with-fragments [fragments body]
-  `(binding [*inserted-fragments* (atom #{})
-             *all-fragments*      (into {} ~fragments)]
-     ~body))
+;; values computed once for every fragment in the context. map of fragment name to value.
+(def ^:dynamic *includes* nil)
+
+(defmacro with-fragments
+  ([fragments body] `(with-fragments ~fragments {} ~body))
+  ([fragments includes body]
+   `(binding [*inserted-fragments* (atom #{})
+              *all-fragments*      (into {} ~fragments)
+              *includes*           (atom (or ~includes {}))]
+      ~body)))
+
+(defn cached-include
+  "Returns the value of (f) computed on the first inclusion of the fragment in the current fragment context.
+   f has side effects on the context, so it is called once even when parts are evaluated concurrently:
+   a delay is stored and every part forces the same delay."
+  [frag-name f]
+  (assert *includes*)
+  (force
+   (if-let [[_ value] (find @*includes* frag-name)]
+     value
+     (-> *includes*
+         (swap! (fn [includes] (if (contains? includes frag-name) includes (assoc includes frag-name (delay (f))))))
+         (get frag-name)))))
 
 (defn use-fragment [frag-name]
   (if-let [fragment (get *all-fragments* frag-name)]
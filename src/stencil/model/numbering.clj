@@ -3,7 +3,7 @@
             [clojure.java.io :as io]
             [stencil.ooxml :as ooxml]
             [stencil.util :refer [unlazy-tree ->int assoc-some find-first]]
-            [stencil.model.common :refer [->xml-writer]]
+            [stencil.model.common :refer [->xml-writer appending-writer prepare-xml source-file source-stream]]
             [stencil.model.content-types :as content-types]
             [stencil.model.relations :as relations]
             [stencil.fs :as fs :refer [unix-path]]))
@@ -43,7 +43,9 @@
       (content-types/assoc-override "/word/numbering.xml" "application/vnd.openxmlformats-officedocument.wordprocessingml.numbering+xml")
       (update-in [:main :stencil.model/numbering :parsed :content] concat extra-elems)
       (update-in [:main :stencil.model/numbering]
-                 (fn [nr#] (assoc nr# :result {:writer (->xml-writer (:parsed nr#))})))
+                 (fn [nr#] (assoc nr# :result {:writer (if-let [prepared (force (:prepared nr#))]
+                                                         (appending-writer prepared extra-elems)
+                                                         (->xml-writer (:parsed nr#)))})))
       (relations/assoc-relation "genStencilNumbering" rel-type-numbering "numbering.xml")))
 
 ;; defines target context. changes to numberngs will be moved here.
@@ -147,7 +149,7 @@
 
 (defn- parse [numbering-file]
   (assert numbering-file)
-  (with-open [r (io/input-stream (io/file numbering-file))]
+  (with-open [r (source-stream numbering-file)]
     (let [tree (xml/parse r)]
       (prepare-numbering-xml tree))))
 
@@ -158,9 +160,12 @@
                       (unix-path (io/file (fs/parent-file (io/file main-document))
                                           (:stencil.model/target %))))
                    (vals (:parsed main-document-rels)))]
-    {:stencil.model/path       main-numbering-path
-     :source-file              (io/file dir main-numbering-path)
-     :parsed                   (parse (io/file dir main-numbering-path))}))
+    (let [parsed (parse (source-file dir main-numbering-path))]
+      {:stencil.model/path       main-numbering-path
+       :source-file              (source-file dir main-numbering-path)
+       :parsed                   parsed
+       ;; serialized on the first render that adds numbering definitions
+       :prepared                 (delay (prepare-xml parsed))})))
 
 (defn assoc-numbering [model dir]
   (->> (main-numbering dir (:stencil.model/path model) (:relations model))
@@ -5,7 +5,7 @@
             [stencil.fs :as fs :refer [unix-path]]
             [stencil.ooxml :as ooxml]
             [stencil.util :refer [update-some find-first]]
-            [stencil.model.common :refer [->xml-writer]]))
+            [stencil.model.common :refer [->xml-writer appending-writer prepare-xml source-file source-stream]]))
 
 (def tag-relationships
   :xmlns.http%3A%2F%2Fschemas.openxmlformats.org%2Fpackage%2F2006%2Frelationships/Relationships)
@@ -55,7 +55,7 @@
   #{rel-type-footer rel-type-header rel-type-slide rel-type-slide-master rel-type-notes-master})
 
 (defn- parse [rel-file]
-  (with-open [reader (io/input-stream (file rel-file))]
+  (with-open [reader (source-stream rel-file)]
     (let [parsed (xml/parse reader)]
       (assert (= tag-relationships (:tag parsed))
               (str "Unexpected tag: " (:tag parsed)))
@@ -67,15 +67,22 @@
                                  :stencil.model/target (doto (:Target (:attrs d)) assert)
                                  :stencil.model/mode   (:TargetMode (:attrs d))}])))))
 
-(defn ->rels [^java.io.File dir f]
+(declare relations-tree)
+
+(defn- prepared-delay [relation-map]
+  (delay (assoc (prepare-xml (relations-tree relation-map)) :parsed relation-map)))
+
+(defn ->rels [dir f]
   (let [rels-path (if f
                     (unix-path (fs/unroll (file (fs/parent-file (file f)) "_rels" (str (.getName (file f)) ".rels"))))
-                    (unix-path (file "_rels" ".rels"))) 
-        rels-file (file dir rels-path)]
-    (when (fs/exists? rels-file)
-      {:stencil.model/path rels-path
-       :source-file rels-file
-       :parsed (parse rels-file)})))
+                    (unix-path (file "_rels" ".rels")))]
+    (when-let [rels-file (source-file dir rels-path)]
+      (let [parsed (parse rels-file)]
+        {:stencil.model/path rels-path
+         :source-file rels-file
+         :parsed parsed
+         ;; serialized on the first render that adds relations
+         :prepared (prepared-delay parsed)}))))
 
 (defn targets-by-type
   "Returns seq of paths from relations definition where relation type matches the predicate."
@@ -85,19 +92,35 @@
         :when (type-pred (:stencil.model/type v))]
     (:stencil.model/target v)))
 
-(defn writer [relation-map]
-  (assert (map? relation-map))
-  (assert (every? string? (keys relation-map)) (str "Not all str: " (keys relation-map)))
+(defn- relation-elements [relation-map]
+  (for [[k v] relation-map]
+    {:tag tag-relationship
+     :attrs (cond-> {:Type (:stencil.model/type v), :Target (:stencil.model/target v), :Id k}
+              (:stencil.model/mode v) (assoc :TargetMode (:stencil.model/mode v)))}))
+
+(defn- relations-tree [relation-map]
   (->
    {:tag tag-relationships
-    :content (for [[k v] relation-map]
-               {:tag tag-relationship
-                :attrs (cond-> {:Type (:stencil.model/type v), :Target (:stencil.model/target v), :Id k}
-                         (:stencil.model/mode v) (assoc :TargetMode (:stencil.model/mode v)))})}
+    :content (relation-elements relation-map)}
    ;; LibreOffice opens the generated document only when default xml namespace is the following:
    (with-meta {:clojure.data.xml/nss
-               (pu/assoc pu/EMPTY "" "http://schemas.openxmlformats.org/package/2006/relationships")})
-   (->xml-writer)))
+               (pu/assoc pu/EMPTY "" "http://schemas.openxmlformats.org/package/2006/relationships")})))
+
+(defn writer [relation-map]
+  (assert (map? relation-map))
+  (assert (every? string? (keys relation-map)) (str "Not all str: " (keys relation-map)))
+  (->xml-writer (relations-tree relation-map)))
+
+(defn relations-writer
+  "Returns a writer fn of a relations model. When relations were only added to the parsed relations file,
+   the prepared bytes of the file are written and only the new relations are serialized."
+  [relations]
+  (let [relation-map (:parsed relations)
+        prepared     (force (:prepared relations))
+        original     (:parsed prepared)]
+    (if (and prepared (every? (fn [[id relation]] (= relation (get relation-map id))) original))
+      (appending-writer prepared (relation-elements (remove (comp (partial contains? original) key) relation-map)))
+      (writer relation-map))))
 
 
 (defn- map-rename-relation-ids [item id-rename]
@@ -124,8 +147,9 @@
   (doall
    (for [[old-rel-id m] (-> model :main :relations :parsed (doto assert))
          :when (#{rel-type-image rel-type-hyperlink} (:stencil.model/type m))
-         :let [new-id       (->relation-id)
-               new-path     (if (= "External" (:stencil.model/mode m))
+         :let [external?    (= "External" (:stencil.model/mode m))
+               new-id       (->relation-id)
+               new-path     (if external?
                               (:stencil.model/target m)
                               (str new-id "." (last (.split (str (:stencil.model/target m)) "\\."))))]]
      {:stencil.model/type       (:stencil.model/type m)
@@ -134,7 +158,11 @@
       :fragment-name fragment-name
       :new-id      new-id
       :old-id      old-rel-id
-      :source-file (file (-> model :main :source-file file fs/parent-file) (:stencil.model/target m))
+      :source-file (when-not external?
+                     (->> (file (fs/parent-file (file (:stencil.model/path (:main model)))) (:stencil.model/target m))
+                          (fs/unroll)
+                          (unix-path)
+                          (source-file (:source-folder model))))
       :stencil.model/path       new-path})))
 
 ;; set of extra relations to be added after evaluating document
@@ -147,6 +175,22 @@
   (assert (:new-id m))
   (swap! *extra-files* conj m) m)
 
+;; relations of generated files and links by a content key, shared by the parts of a render
+(def ^:dynamic *extra-files-cache* nil)
+
+(defmacro with-extra-files-cache [body]
+  `(binding [*extra-files-cache* (atom {})] ~body))
+
+(defn add-cached-extra-file!
+  "Like add-extra-file! but the relation is created with (make-relation) only once for the same key in a render.
+   Parts that add the same key get the same relation id and file."
+  [key make-relation]
+  (add-extra-file!
+   (if-let [cache *extra-files-cache*]
+     (or (get @cache key)
+         (get (swap! cache (fn [m] (if (contains? m key) m (assoc m key (make-relation))))) key))
+     (make-relation))))
+
 (defn model-assoc-extra-files [m fragment-names]
   (assert *extra-files*)
   (assert (set? fragment-names))
@@ -170,6 +214,16 @@
     (seq @*extra-files*)
     (update-in [:relations] dissoc :source-file)))
 
+(defn link-extra-files
+  "Adds the relations to the relations file of a part when fragments are linked to a template.
+   The relations file is serialized with the new relations, renders do not add them again."
+  [m extra-files]
+  (if (empty? extra-files)
+    m
+    (-> (binding [*extra-files* (atom (set extra-files))]
+          (model-assoc-extra-files m (set (keep :fragment-name extra-files))))
+        (update :relations (fn [relations] (assoc relations :prepared (prepared-delay (:parsed relations))))))))
+
 (defn assoc-relation [model name type target]
   (-> model
       (assoc-in [:main :relations :parsed name]
@@ -3,8 +3,8 @@
             [clojure.java.io :as io]
             [stencil.fs :as fs]
             [stencil.ooxml :as ooxml]
-            [stencil.model.common :refer [->xml-writer]]
-            [stencil.util :refer [assoc-some find-first update-some]]))
+            [stencil.model.common :refer [append-xml appending-writer prepare-xml source-file source-stream]]
+            [stencil.util :refer [assoc-some find-first unlazy-tree update-some]]))
 
 
 (set! *warn-on-reflection* true)
@@ -31,25 +31,30 @@
 
 (defn- parse
   "Returns a map where key is style id and value is style definition."
-  [style-file]
-  (assert style-file)
-  (with-open [r (io/input-stream (io/file style-file))]
-    (into (sorted-map)
-          (for [d (:content (xml/parse r))
-                :when (map? d)
-                :when (= ooxml/style (:tag d))]
-            [(ooxml/style-id (:attrs d)) d]))))
+  [tree]
+  (into (sorted-map)
+        (for [d (:content tree)
+              :when (map? d)
+              :when (= ooxml/style (:tag d))]
+          [(ooxml/style-id (:attrs d)) d])))
 
 (defn file-writer [template]
   (expect-fragment-context!
-   (let [original-style-file (:source-file (:style (:main template)))
-         _ (assert (fs/exists? original-style-file))
-         extended-tree (with-open [r (io/input-stream original-style-file)]
-                         (let [tree (xml/parse r)
-                               all-ids (set (keep (comp ooxml/style-id :attrs) (:content tree)))
-                               insertable (vals (apply dissoc @*current-styles* all-ids))]
-                           (update tree :content (comp vec concat) insertable)))]
-     {:writer (->xml-writer extended-tree)})))
+   (let [{:keys [ids prepared]} (:style (:main template))
+         _ (assert prepared)
+         insertable (for [[id style] @*current-styles* :when (not (contains? ids id))] style)]
+     {:writer (appending-writer prepared insertable)})))
+
+
+(defn link-styles
+  "Returns the style model where the new definitions of the styles map are serialized with the prepared file.
+   Called when fragments are linked to a template, renders do not insert these styles again."
+  [style styles]
+  (let [inserted (into (sorted-map) (remove (comp (:ids style) key)) styles)]
+    (assoc style
+           :parsed   styles
+           :ids      (into (:ids style) (keys inserted))
+           :prepared (append-xml (:prepared style) (vals inserted)))))
 
 
 (defn- -insert-style!
@@ -58,23 +63,28 @@
   (assert (= "style" (name (:tag style-definition))))
   (assert (contains? (:attrs style-definition) ooxml/style-id))
   (expect-fragment-context!
-   (let [id (-> style-definition :attrs ooxml/style-id)]
-     (if-let [old-style (get @*current-styles* id)]
-       (if (= old-style style-definition)
-         id
-         (let [new-id    (name (gensym "sid"))
-               new-style (assoc-in style-definition [:attrs ooxml/style-id] new-id)
-               new-style (update new-style :content
-                                 #(for [c %]
-                                    ;; TODO: itt leptetni kell majd,
-                                    ;; hogy a nev rendes erteket kapjon!!!!
-                                    (if (= ooxml/name (:tag c))
-                                      (assoc-in c [:attrs ooxml/val] (name (gensym "title")))
-                                      c)))]
-           (swap! *current-styles* assoc new-id new-style)
-           new-id))
-       (do (swap! *current-styles* assoc id style-definition)
-           id)))))
+   (let [id     (-> style-definition :attrs ooxml/style-id)
+         result (volatile! id)]
+     ;; lookup and insertion happen in a single swap because parts may be evaluated concurrently.
+     (swap! *current-styles*
+            (fn [styles]
+              (if-let [old-style (get styles id)]
+                (if (= old-style style-definition)
+                  (do (vreset! result id) styles)
+                  (let [new-id    (name (gensym "sid"))
+                        new-style (assoc-in style-definition [:attrs ooxml/style-id] new-id)
+                        new-style (update new-style :content
+                                          #(for [c %]
+                                             ;; TODO: itt leptetni kell majd,
+                                             ;; hogy a nev rendes erteket kapjon!!!!
+                                             (if (= ooxml/name (:tag c))
+                                               (assoc-in c [:attrs ooxml/val] (name (gensym "title")))
+                                               c)))]
+                    (vreset! result new-id)
+                    (assoc styles new-id new-style)))
+                (do (vreset! result id)
+                    (assoc styles id style-definition)))))
+     @result)))
 
 
 (defn insert-styles!
@@ -105,10 +115,14 @@
                               (vals (:parsed main-document-rels)))]
     (let [main-style-file (io/file (fs/parent-file (io/file main-document))
                                    (:stencil.model/target main-style))
-          main-style-abs  (io/file dir main-style-file)]
+          main-style-abs  (source-file dir (fs/unix-path main-style-file))
+          tree            (with-open [r (source-stream main-style-abs)] (unlazy-tree (xml/parse r)))]
       {:stencil.model/path (fs/unix-path main-style-file)
        :source-file        main-style-abs
-       :parsed             (parse main-style-abs)})))
+       :parsed             (parse tree)
+       ;; the file is serialized once, renders only serialize the styles inserted by fragments
+       :ids                (set (keep (comp ooxml/style-id :attrs) (:content tree)))
+       :prepared           (prepare-xml tree)})))
 
 
 (defn assoc-style [model dir]
@@ -0,0 +1,120 @@
+(ns stencil.postprocess.fused
+  "Runs the postprocess steps that rewrite single nodes in one traversal of a mutable copy of the tree.
+
+   The content of every element is copied to an ArrayList. Markers are removed and elements are replaced
+   in place while the lists are walked in document order. Replaced links and images are updated on the last
+   hyperlink and image nodes seen before the marker, so no backward search is needed.
+   The tree is converted back to immutable elements once at the end."
+  (:require [stencil.ooxml :as ooxml]
+            [stencil.postprocess.html :as html]
+            [stencil.postprocess.images :as images]
+            [stencil.postprocess.links :as links]
+            [stencil.postprocess.whitespaces :as whitespaces]
+            [stencil.util :refer [fail]])
+  (:import [java.util ArrayList List]
+           [stencil.postprocess.html HtmlChunk]
+           [stencil.postprocess.images ReplaceImage]
+           [stencil.postprocess.links ReplaceLink]))
+
+(set! *warn-on-reflection* true)
+
+(defn- ->mutable [node]
+  (if (and (map? node) (:tag node) (seq (:content node)))
+    (let [content (ArrayList.)]
+      (doseq [c (:content node)] (.add content (->mutable c)))
+      (assoc node :content content))
+    node))
+
+(defn- ->immutable [node]
+  (if (and (map? node) (instance? ArrayList (:content node)))
+    (assoc node :content (not-empty (mapv ->immutable (:content node))))
+    node))
+
+;; slot is the location of a node: a pair of the list and the index of the node in the list.
+(defn- edit-slot! [[^List items index] f marker]
+  (.set items (int index) (f (.get items (int index)) marker)))
+
+(defn- replace-at!
+  "Replaces the item of the list at the index with the nodes. Returns the index after the new nodes."
+  [^List items ^long index nodes]
+  (.remove items (int index))
+  (.addAll items (int index) ^java.util.Collection nodes)
+  (+ index (count nodes)))
+
+(declare visit!)
+
+(defn- visit-children! [node options state]
+  (when (instance? ArrayList (:content node))
+    (visit! (:content node) options state)))
+
+(defn- visit-html-run!
+  "Replaces a run with html chunks by the new runs. Returns the index after the new runs."
+  [^List items ^long index options state]
+  (let [run (.get items (int index))]
+    ;; markers before the html chunks are handled first
+    (visit-children! run (assoc options :html? false :whitespaces? false) state)
+    ;; the new runs have no markers, hyperlink and image nodes are visited again for their new locations
+    (let [runs (ArrayList. ^java.util.Collection (map ->mutable (html/fix-html-run (->immutable run))))]
+      (visit! runs (assoc options :html? false) state)
+      (replace-at! items index runs))))
+
+(defn- visit-text!
+  "Fixes whitespaces of a text element. Returns the index after the new elements."
+  [^List items ^long index options state]
+  (let [text (.get items (int index))]
+    (visit-children! text options state)
+    (let [fixed (whitespaces/fix-text-element text)]
+      (if (and (= 1 (count fixed)) (identical? text (first fixed)))
+        (inc index)
+        (replace-at! items index fixed)))))
+
+(defn- visit!
+  "Walks the items of the list and their descendants in document order and rewrites them in place."
+  [^List items options state]
+  (loop [i 0]
+    (when (< i (.size items))
+      (let [item (.get items i)]
+        (cond
+          (and (:links? options) (instance? ReplaceLink item))
+          (do (edit-slot! (or (:link @state) (links/missing-link!)) links/update-link item)
+              (.remove items (int i))
+              (recur i))
+
+          (and (:images? options) (instance? ReplaceImage item))
+          (do (edit-slot! (or (:image @state) (images/missing-image!)) images/update-image item)
+              (.remove items (int i))
+              (recur i))
+
+          (and (:html? options) (instance? HtmlChunk item))
+          (fail "The result of html() call must be in a text run!" {})
+
+          (not (map? item))
+          (recur (inc i))
+
+          :else
+          (let [tag (:tag item)]
+            (when (and (:links? options) (= ooxml/hyperlink tag))
+              (vswap! state assoc :link [items i]))
+            (when (and (:images? options) (images/image-node? item))
+              (vswap! state assoc :image [items i]))
+            (cond
+              (and (:html? options) (= ooxml/r tag) (html/html-run? item))
+              (recur (long (visit-html-run! items i options state)))
+
+              (and (:whitespaces? options) (= ooxml/t tag))
+              (recur (long (visit-text! items i options state)))
+
+              :else
+              (do (visit-children! item options state)
+                  (recur (inc i))))))))))
+
+(defn postprocess
+  "Runs the selected steps on the tree in one traversal.
+   Options are :links? for replaceLink(), :images? for replaceImage(), :html? for html() calls
+   and :whitespaces? for fixing the whitespaces of text elements."
+  [xml-tree options]
+  (assert (map? xml-tree))
+  (let [root (doto (ArrayList.) (.add (->mutable xml-tree)))]
+    (visit! root options (volatile! {}))
+    (assert (= 1 (.size root)) "The root element must not be replaced!")
+    (->immutable (.get root 0))))
@@ -84,3 +84,16 @@
 
 (defn fix-html-chunks [xml-tree]
   (dfs-walk-xml-node xml-tree #(instance? HtmlChunk %) fix-html-chunk))
+
+(defn html-run?
+  "Tells if a run element has a text with html chunks."
+  [run]
+  (some (fn [t] (and (map? t)
+                     (= ooxml/t (:tag t))
+                     (some #(instance? HtmlChunk %) (:content t))))
+        (:content run)))
+
+(defn fix-html-run
+  "Returns the runs that replace a run with html chunks."
+  [run]
+  (vec (:content (fix-html-chunks {:tag ::runs :content [run]}))))
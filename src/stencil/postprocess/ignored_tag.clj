@@ -49,25 +49,71 @@
            (update-choice-requires (partial map-str p->url)))))
    xml-tree))
 
+;; returns the alias of the uri, found is a volatile of the url -> alias mapping
+(defn- find-alias! [found uri]
+  (or (get @found uri)
+      (get (vswap! found assoc uri (gen-alias uri)) uri)))
+
+;; replaces the namespaces in the Ignorable and Requires attributes with aliases.
+;; returns a pair of the tree and the uri -> alias map of the aliases to be declared.
+(defn- unmap-attrs [xml-tree]
+  (let [found (volatile! {}) ;; url -> alias mapping
+        find! (partial find-alias! found)
+        tree  (postwalk-xml
+               (fn [form]
+                 (when-let [ns (some-> form :tag xml-name/qname-uri)]
+                   (when (contains? ooxml/default-aliases ns)
+                     (find! ns)))
+                 (-> form
+                     (update-if-present [:attrs ooxml/ignorable] (partial map-str find!))
+                     (update-choice-requires (partial map-str find!))))
+               xml-tree)]
+    [tree @found]))
+
 ;; last call this
 (defn unmap-ignored-attr
   "Walks XML tree and replaces xml namespaces with aliases.
    Call just before serializing the XML tree."
   [xml-tree]
-  (let [found (volatile! {}) ;; url -> alias mapping
-        find! (fn [uri]
-                (or (get @found uri)
-                    (get (vswap! found assoc uri (gen-alias uri)) uri)))]
-    (with-pu
-      (postwalk-xml
-       (fn [form]
-         (when-let [ns (some-> form :tag xml-name/qname-uri)]
-           (when (contains? ooxml/default-aliases ns)
-             (find! ns)))
-         (-> form
-             (update-if-present [:attrs ooxml/ignorable] (partial map-str find!))
-             (update-choice-requires (partial map-str find!))))
-       xml-tree)
-      @found)))
+  (let [[tree found] (unmap-attrs xml-tree)]
+    (with-pu tree found)))
+
+(defn prepare-ignored-attr
+  "Replaces the aliases in the Ignorable and Requires attributes of a parsed template with the aliases that
+   are declared on the evaluated documents. Returns a pair of the tree and the uri -> alias map to declare."
+  [xml-tree]
+  (unmap-attrs (map-ignored-attr xml-tree)))
+
+(defn prepare-element-attrs
+  "Same as prepare-ignored-attr for the attributes of a single element when the template is read as a stream.
+   The found volatile holds the uri -> alias map to declare, prefix->uri resolves the prefixes in the scope of the element.
+   Returns the attributes with aliases in the Ignorable and Requires values."
+  [found tag attrs prefix->uri]
+  (let [ns (xml-name/qname-uri tag)]
+    (when (contains? ooxml/default-aliases ns)
+      (find-alias! found ns)))
+  (let [remap (partial map-str (comp (fn [uri] (some->> uri (find-alias! found))) prefix->uri))]
+    (-> attrs
+        (update-if-present [ooxml/ignorable] remap)
+        (cond-> (= tag ooxml/choice) (update-if-present [:Requires] remap)))))
+
+;; adds the aliases of known namespaces of the elements in the tree.
+(defn- collect-aliases [found xml-tree]
+  (if (map? xml-tree)
+    (let [ns (some-> xml-tree :tag xml-name/qname-uri)]
+      (reduce collect-aliases
+              (if (and ns (not (contains? found ns)) (contains? ooxml/default-aliases ns))
+                (assoc found ns (gen-alias ns))
+                found)
+              (:content xml-tree)))
+    found))
+
+(defn declare-aliases
+  "Declares the aliases of a prepared template on the root of an evaluated tree.
+   When reconcile? is true the elements are also walked for known namespaces of content
+   that came from fragments, xml() or html() calls."
+  [xml-tree aliases reconcile?]
+  (assert (map? aliases))
+  (with-pu xml-tree (if reconcile? (collect-aliases aliases xml-tree) aliases)))
 
 :OK
@@ -40,7 +40,17 @@
   {ooxml/blip ooxml/r-embed
    ooxml/tag-imagedata ooxml/r-id})
 
-(defn- update-image [img-node, ^ReplaceImage data]
+(defn image-node?
+  "Tells if the node is an image that refers to its content with a relation id."
+  [node]
+  (contains? img-tag-attr (:tag node)))
+
+(defn missing-image! []
+  (fail "Did not find image to replace. The location of target image must precede the replaceImage() function call location." {}))
+
+(defn update-image
+  "Replaces the relation id of an image node with the one of the marker."
+  [img-node, ^ReplaceImage data]
   (assert (img-tag-attr (:tag img-node)))
   (assert (instance? ReplaceImage data))
   (let [attr-key    (img-tag-attr (:tag img-node))
@@ -53,9 +63,9 @@
 (defn- replace-image [marker-loc]
   (if-let [img-loc (->> (zip/remove marker-loc)
                         (iterations zip/prev)
-                        (find-first (comp img-tag-attr :tag zip/node)))]
+                        (find-first (comp image-node? zip/node)))]
     (zip/edit img-loc update-image (zip/node marker-loc))
-    (fail "Did not find image to replace. The location of target image must precede the replaceImage() function call location." {})))
+    (missing-image!)))
 
 (defn replace-images [xml-tree]
   (dfs-walk-xml-node
@@ -86,7 +96,7 @@
      :writer               (bytes->writer bytes)}))
 
 ;; replaces the nearest image with the content
+;; the same data uri is decoded and written only once in a render.
 (defmethod call-fn "replaceImage" [_ data]
-  (let [extra-file (img-data->extrafile data)]
-    (relations/add-extra-file! extra-file)
+  (let [extra-file (relations/add-cached-extra-file! [::image data] #(img-data->extrafile data))]
     (->ReplaceImage (:new-id extra-file))))
\ No newline at end of file
@@ -11,7 +11,12 @@
 ;; Tells if the reference of an adjacent hyperlink node should be replaced in postprocess step.
 (defrecord ReplaceLink [relation])
 
-(defn- update-link [link-node, ^ReplaceLink data]
+(defn missing-link! []
+  (fail "Did not find hyperlink to replace. The location of target link must precede the replaceLink() function call location." {}))
+
+(defn update-link
+  "Replaces the relation id of a hyperlink node with the one of the marker."
+  [link-node, ^ReplaceLink data]
   (assert (= ooxml/hyperlink (:tag link-node)))
   (assert (instance? ReplaceLink data))
   (let [current-rel (-> link-node :attrs ooxml/r-id)
@@ -25,7 +30,7 @@
                          (iterations zip/prev)
                          (find-first (comp #{ooxml/hyperlink} :tag zip/node)))]
     (zip/edit link-loc update-link (zip/node marker-loc))
-    (fail "Did not find hyperlink to replace. The location of target link must precede the replaceLink() function call location." {})))
+    (missing-link!)))
 
 (defn replace-links [xml-tree]
   (dfs-walk-xml-node
@@ -46,7 +51,8 @@
      :stencil.model/mode   "External"}))
 
 ;; replaces the nearest link's URK with the parameter value
+;; the same url gets the same relation in a render.
 (defmethod call-fn "replaceLink" [_ url]
-  (let [new-relation (link-url->relation (str url))]
-    (relations/add-extra-file! new-relation)
+  (let [url          (str url)
+        new-relation (relations/add-cached-extra-file! [::link url] #(link-url->relation url))]
     (->ReplaceLink (:new-id new-relation))))
\ No newline at end of file
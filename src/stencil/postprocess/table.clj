@@ -372,12 +372,17 @@
     (remove-current-row marker)
     xml-tree))
 
+(defn thin-column?
+  "Igaz, ha az elem egy nagyon kicsi szelessegu gridCol oszlop, amit el kell tavolitani."
+  [elem]
+  (boolean (and (tag-matches? "gridCol" elem)
+                (some-> elem :attrs ooxml/w ->int (< min-col-width)))))
+
 (defn remove-table-thin-columns-1
   "Ha a tablazatban van olyan oszlop, amely szelessege nagyon kicsi, az egesz oszlopot eltavolitja."
   [xml-tree]
   ;; Ha talalunk olyan gridCol oszlopot, ami nagyon kicsi
-  (if-let [loc (find-first-in-tree #(and (tag-matches? "gridCol" %)
-                                         (some-> % :attrs ooxml/w ->int (< min-col-width))) (xml-zip xml-tree))]
+  (if-let [loc (find-first-in-tree thin-column? (xml-zip xml-tree))]
     (let [col-idx (count (filter #(some-> % zip/node :tag) (next (iterations zip/left loc))))
           table-loc (find-enclosing-table (zip/remove loc))]
       (zip/root (map-each-rows #(remove-columns % #{col-idx} :rational) table-loc)))
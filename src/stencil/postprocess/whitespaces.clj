@@ -19,6 +19,14 @@
       (min idx1 idx2)
       (or idx1 idx2))))
 
+(defn fixable-text?
+  "Tells if a text value of a <w/t> element needs fixing: it starts or ends with
+   whitespace or contains a new line or tab character."
+  [s]
+  (boolean (or (starts-with? s " ")
+               (ends-with? s " ")
+               (first-index-of s \newline \tab))))
+
 (defn- should-fix? [element]
   (when (and (map? element)
              (= ooxml/t (:tag element))
@@ -51,12 +59,19 @@
         :else
         ,,,{:tag ooxml/t :content [item]}))
 
+(defn fix-text-element
+  "Returns the elements that replace a <w/t> element: the element itself
+   or the fixed text, break and tab elements when it needs fixing."
+  [element]
+  (if (should-fix? element)
+    (->> (:content element)
+         (apply str)
+         (split-str)
+         (map str->element))
+    [element]))
+
 (defn- fix-elem-node [loc]
-  (->> (:content (zip/node loc))
-       (apply str)
-       (split-str)
-       (map str->element)
-       (multi-replace loc)))
+  (multi-replace loc (fix-text-element (zip/node loc))))
 
 (defn fix-whitespaces [xml-tree] (dfs-walk-xml-node xml-tree should-fix? fix-elem-node))
  
@@ -1,17 +1,28 @@
 (ns stencil.process
   "These functions are called from Java."
-  (:import [java.util.zip ZipEntry ZipOutputStream]
-           [io.github.erdos.stencil EvaluatedDocument PrepareOptions PreparedFragment PreparedTemplate TemplateVariables]
-           [io.github.erdos.stencil.impl ZipHelper LifecycleLock])
+  (:import [io.github.erdos.stencil CompressionPolicy EvaluatedDocument PrepareOptions PreparedFragment PreparedTemplate
+            StorageMode TemplateDocumentFormats TemplateVariables]
+           [io.github.erdos.stencil.impl ZipArchive ZipArchive$Entry ZipHelper ZipWriter LifecycleLock
+            ParallelZipWriter ParallelZipWriter$EntryWriter
+            TemplateSnapshot TemplateSnapshot$ArchiveRef TemplateSnapshot$EntryRef TemplateSnapshot$ElementRef]
+           [clojure.lang Delay LazySeq]
+           [java.io Closeable File InputStream]
+           [java.util.concurrent Executor]
+           [java.util.function UnaryOperator])
   (:require [clojure.core.protocols :refer [Datafiable]]
             [clojure.datafy :refer [datafy]]
+            [clojure.data.xml :as xml]
             [clojure.java.io :as io]
             [stencil.log :as log]
             [stencil.model :as model]
+            [stencil.model.common :refer [raw-entry]]
             [stencil.fs :as fs :refer [unix-path]]))
 
 (set! *warn-on-reflection* true)
-(declare render-writers-map)
+(declare render-writers-map render-writers-map-parallel)
+
+(defmacro ^:private get-version [] (slurp (io/resource "stencil-version")))
+(def ^:private version (doto (get-version) (assert)))
 
 ;; merge a set of fragment names under the :fragments key
 (defn- get-fragment-names [model]
@@ -26,70 +37,214 @@
       (into (for [x (:headers+footers (:main model))
                   v (:variables (:executable x))] v))))
 
-;; Called  from Java API
-(defn prepare-template [template-file, ^PrepareOptions options]
-  (let [zip-dir   (fs/->tmp-file (.getTemporaryDirectoryOverride options)
-                                 "stencil-" ".zip.contents")
-        options   {:only-includes (.isOnlyIncludes options)}
-        _         (with-open [zip-stream (io/input-stream template-file)]
-                    (ZipHelper/unzipStreamIntoDirectory zip-stream zip-dir))
-        model     (model/load-template-model zip-dir options)
-        variables (TemplateVariables/fromPaths (get-variable-names model) (get-fragment-names model))
+;; Guesses format from the file name or from the location of the main document part.
+(defn- template-format ^TemplateDocumentFormats [template-file model]
+  (or (some-> template-file str (TemplateDocumentFormats/ofExtension) (.orElse nil))
+      (let [main-path (str (-> model :main ::model/path))]
+        (cond (.startsWith main-path "word/") TemplateDocumentFormats/DOCX
+              (.startsWith main-path "ppt/")  TemplateDocumentFormats/PPTX))
+      (throw (new IllegalStateException (str "Could not guess format of template " template-file)))))
+
+;; Returns a tuple of template source and cleanup fn. The template source is either a ZipArchive
+;; that is read straight from memory or a temporary directory where the file is unzipped.
+(defn- template-source [template, ^PrepareOptions options, prefix]
+  (let [mode (.getStorageMode options)]
+    (cond
+      (instance? ZipArchive template)
+      [(if (= StorageMode/OFF_HEAP mode) (.toDirect ^ZipArchive template) template) (fn [])]
+
+      (= StorageMode/TEMPORARY_DIRECTORY mode)
+      (let [zip-dir (fs/->tmp-file (.getTemporaryDirectoryOverride options) prefix ".zip.contents")]
+        (with-open [zip-stream (io/input-stream template)]
+          (ZipHelper/unzipStreamIntoDirectory zip-stream zip-dir))
+        [zip-dir #(fs/delete! zip-dir)])
+
+      (= StorageMode/HEAP mode)
+      [(with-open [zip-stream (io/input-stream template)] (ZipArchive/fromStream zip-stream)) (fn [])]
+
+      (= StorageMode/OFF_HEAP mode)
+      [(ZipArchive/fromFileDirect (io/file template)) (fn [])]
+
+      (= StorageMode/MAPPED mode)
+      [(ZipArchive/fromFile (io/file template)) (fn [])])))
+
+;; Java serialization can not handle lazy xml trees, delays and the template source.
+;; Parts are stored as references to the archive entries instead.
+(defn- snapshot-replacer [source]
+  (reify UnaryOperator
+    (apply [_ x]
+      (cond (or (instance? ZipArchive x) (= source x))
+            TemplateSnapshot/ARCHIVE
+
+            (instance? ZipArchive$Entry x)
+            (new TemplateSnapshot$EntryRef (.getName ^ZipArchive$Entry x))
+
+            (instance? File x)
+            (new TemplateSnapshot$EntryRef (unix-path (.toFile (.relativize (.toPath ^File source) (.toPath ^File x)))))
+
+            (instance? clojure.data.xml.node.Element x)
+            (new TemplateSnapshot$ElementRef (:tag x) (:attrs x) (vec (:content x)))
+
+            (instance? LazySeq x)
+            (apply list x)
+
+            ;; parts serialized on demand are serialized before the snapshot is written
+            (instance? Delay x)
+            (force x)
+
+            :else x))))
+
+(defn- snapshot-resolver [^ZipArchive archive]
+  (reify UnaryOperator
+    (apply [_ x]
+      (cond (instance? TemplateSnapshot$ArchiveRef x)
+            archive
+
+            (instance? TemplateSnapshot$EntryRef x)
+            (.getEntry archive (.getPath ^TemplateSnapshot$EntryRef x))
+
+            (instance? TemplateSnapshot$ElementRef x)
+            (let [x ^TemplateSnapshot$ElementRef x]
+              (xml/element* (.getTag x) (.getAttrs x) (.getContent x)))
+
+            :else x))))
+
+(defn- ->prepared-template
+  [model template-file ^LifecycleLock lock ^PrepareOptions options]
+  (let [variables (TemplateVariables/fromPaths (get-variable-names model)
+                                               ;; linked fragments are not needed when rendering
+                                               (reduce disj (get-fragment-names model) (keys (::model/fragments model))))
         datetime  (java.time.LocalDateTime/now)
-        lock      (new LifecycleLock #(fs/delete! zip-dir))]
+        format    (delay (template-format template-file model))
+        policy    (.getCompressionPolicy options)
+        eval-opts {:parallel?           (.isParallelEvaluation options)
+                   :streaming?          (.isStreamingRender options)
+                   :temporary-directory (.getTemporaryDirectoryOverride options)}
+        compiled  (model/compile-model model {:segments? true :streaming? (.isStreamingRender options)})
+        source    (:source-folder model)]
     (reify PreparedTemplate
       (getTemplateFile [_] template-file)
+      (getTemplateFormat [_] @format)
       (creationDateTime [_] datetime)
       (render [_ fragments function data]
         (let [data        (into {} (.getData data))
               function    (fn [name args] (.call function name (into-array Object args)))
               fragments   (update-vals fragments datafy)
-              all-locks   (cons lock (keep ::lock (vals fragments)))
+              all-locks   (concat [lock] (::locks model) (keep ::lock (vals fragments)))
               run-locked  #(LifecycleLock/execute all-locks %)
-              writers-map (run-locked #(model/template-model->writers-map model data function fragments))]
+              writers-map (run-locked #(model/template-model->writers-map compiled data function fragments eval-opts))
+              closed      (atom false)
+              check-open  #(when @closed (throw (new IllegalStateException "Evaluated document is already closed!")))]
           (reify EvaluatedDocument
             (write [_ target-stream]
-              (run-locked #(render-writers-map writers-map target-stream))))))
+              (check-open)
+              (run-locked #(render-writers-map writers-map policy target-stream)))
+            (write [_ target-stream executor]
+              (check-open)
+              (run-locked #(render-writers-map-parallel writers-map policy executor target-stream)))
+            ;; writers of streamed parts keep their content in temporary files
+            (close [_]
+              (when (compare-and-set! closed false true)
+                (doseq [writer (vals writers-map) :when (instance? Closeable writer)]
+                  (.close ^Closeable writer)))))))
+      (exportSnapshot [_ stream]
+        (when (::model/fragments model)
+          (throw (new UnsupportedOperationException "Snapshots of templates with linked fragments are not supported!")))
+        (LifecycleLock/execute [lock]
+                               #(let [archive (if (instance? ZipArchive source) source (ZipArchive/fromFile template-file))]
+                                  (TemplateSnapshot/write stream version archive model (snapshot-replacer source)))))
       (close [_] (.close lock))
       (getVariables [_] variables)
       Object
-      (toString [_] (str "<PreparedTemplate of " template-file ">"))
+      (toString [_] (str "<PreparedTemplate of " (or template-file source) ">"))
       Datafiable
-      (datafy [_] model))))
+      (datafy [_] (with-meta model {::lock lock ::options options ::template-file template-file})))))
+
+;; Called  from Java API
+(defn prepare-template
+  "Prepares a template from a File or from a ZipArchive instance."
+  [template, ^PrepareOptions options]
+  (let [template-file (when-not (instance? ZipArchive template) template)
+        [source cleanup] (template-source template options "stencil-")
+        model     (model/load-template-model source {:only-includes (.isOnlyIncludes options)})]
+    (->prepared-template model template-file (new LifecycleLock cleanup) options)))
+
+;; Called from Java API
+(defn link-template
+  "Returns a new prepared template where the includes of the fragments with literal names are resolved.
+   Rendering the new template needs the original template and the fragments to be open.
+   Closing the new template does not close them."
+  [^PreparedTemplate template fragments]
+  (let [model     (datafy template)
+        {::keys [lock options template-file]} (meta model)
+        _         (when-not lock
+                    (throw (new IllegalArgumentException (str "Can not link fragments to " template))))
+        fragments (update-vals (into {} fragments) datafy)
+        linked    (LifecycleLock/execute (cons lock (keep ::lock (vals fragments)))
+                                         #(model/link-fragments model fragments))
+        locks     (distinct (concat [lock] (::locks model) (keep ::lock (vals (::model/fragments linked)))))]
+    (->prepared-template (assoc linked ::locks (vec locks)) template-file (new LifecycleLock (fn [])) options)))
 
 ;; Called from Java API
-(defn prepare-fragment [fragment-file, ^PrepareOptions options]
-  (let [zip-dir (fs/->tmp-file (.getTemporaryDirectoryOverride options)
-                               "stencil-fragment-" ".zip.contents")
+(defn load-template-snapshot
+  "Loads a prepared template from a snapshot created by PreparedTemplate.exportSnapshot"
+  [^InputStream stream, ^PrepareOptions options]
+  (let [resolvers (reify java.util.function.Function
+                    (apply [_ archive]
+                      (snapshot-resolver (first (template-source archive options nil)))))
+        snapshot  (TemplateSnapshot/read stream version resolvers)]
+    (->prepared-template (.getModel snapshot) nil (new LifecycleLock (fn [])) options)))
+
+;; Called from Java API
+(defn prepare-fragment
+  "Prepares a fragment from a File or from a ZipArchive instance."
+  [fragment-file, ^PrepareOptions options]
+  (let [[source cleanup] (template-source fragment-file options "stencil-fragment-")
         options {:only-includes (.isOnlyIncludes options)}
-        _       (with-open [zip-stream (io/input-stream fragment-file)]
-                  (ZipHelper/unzipStreamIntoDirectory zip-stream zip-dir))
-        lock    (new LifecycleLock #(fs/delete! zip-dir))
-        model   (-> (model/load-fragment-model zip-dir options)
+        lock    (new LifecycleLock cleanup)
+        model   (-> (model/load-fragment-model source options)
+                    (model/compile-model)
                     (assoc ::lock lock))]
     (reify
       PreparedFragment (close [_] (.close lock))
       Object           (toString [_] (str "<PreparedFragment of " fragment-file ">"))
       Datafiable       (datafy [_] model))))
 
-(defn- render-writers-map [writers-map outstream]
+;; Parts copied unchanged from an archive keep their compressed bytes,
+;; only evaluated parts are compressed according to the policy.
+(defn- render-writers-map [writers-map ^CompressionPolicy policy outstream]
+  (assert (map? writers-map))
+  (io!
+   (with-open [zipstream (new ZipWriter outstream policy)]
+     (doseq [[k writer] writers-map
+             :let  [rel-path (unix-path (io/file k))]]
+       (assert (not (.contains rel-path "../")))
+       (if-let [entry (raw-entry writer)]
+         (do (log/trace "ZIP: copying {}" rel-path)
+             (.copyEntry zipstream rel-path entry))
+         (do (log/trace "ZIP: writing {}" rel-path)
+             (.putNextEntry zipstream rel-path)
+             (writer zipstream)
+             (.closeEntry zipstream)))))))
+
+;; Same as render-writers-map but writers run and parts are compressed on the executor.
+(defn- render-writers-map-parallel [writers-map ^CompressionPolicy policy ^Executor executor outstream]
   (assert (map? writers-map))
   (io!
-   (with-open [zipstream (new ZipOutputStream outstream)]
+   (with-open [zipstream (new ParallelZipWriter outstream policy executor)]
      (doseq [[k writer] writers-map
-             :let  [rel-path (unix-path (io/file k))
-                    ze       (new ZipEntry rel-path)]]
+             :let  [rel-path (unix-path (io/file k))]]
        (assert (not (.contains rel-path "../")))
-       (log/trace "ZIP: writing {}" rel-path)
-       (.putNextEntry zipstream ze)
-       (writer zipstream)
-       (.closeEntry zipstream)))))
+       (if-let [entry (raw-entry writer)]
+         (.copyEntry zipstream rel-path entry)
+         (.putEntry zipstream rel-path (reify ParallelZipWriter$EntryWriter
+                                         (write [_ stream] (writer stream)))))))))
 
 ;; Called from Java API
 (defn eval-template [{:keys [template data function fragments]}]
   (assert (:source-folder template))
   (let [data        (into {} data)
         writers-map (model/template-model->writers-map template data function fragments)
-        writer      (partial render-writers-map writers-map)]
+        writer      (partial render-writers-map writers-map (CompressionPolicy/defaultPolicy))]
     (reify EvaluatedDocument
       (write [_ target-stream] (writer target-stream)))))
\ No newline at end of file
@@ -0,0 +1,304 @@
+(ns stencil.segments
+  "Pre-serialized static parts of template executables.
+
+   When a template is prepared, maximal runs of static tokens are serialized to UTF-8 byte segments.
+   Rendering then writes the segments directly and only serializes the evaluated tokens between them,
+   without building and postprocessing an XML tree. Every namespace of the part gets a fixed alias that is
+   declared on the root element, so tokens are serialized independently of their context.
+
+   Parts that need postprocessing regardless of the data (references, thin table columns, fragment
+   inclusion) do not get segments. When evaluation produces postprocess markers (images, links, html,
+   hidden table rows and columns) the fast path gives up and the tree is built instead."
+  (:import [clojure.lang ExceptionInfo IRecord]
+           [java.io ByteArrayOutputStream]
+           [java.nio.charset StandardCharsets])
+  (:require [clojure.data.xml.name :as xml-name]
+            [stencil.ooxml :as ooxml]
+            [stencil.postprocess.ignored-tag :as ignored-tag]
+            [stencil.postprocess.table :refer [thin-column?]]
+            [stencil.postprocess.whitespaces :refer [fix-text-element]]))
+
+(set! *warn-on-reflection* true)
+
+(def xml-declaration "<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+
+(def ^:private xml-uri "http://www.w3.org/XML/1998/namespace")
+
+(def ^:private branch-keys [:branch/then :branch/else :branch/body-run-none :branch/body-run-once :branch/body-run-next])
+
+;; commands that are compiled to direct control flow and never produce postprocess markers on their own.
+(def ^:private segment-commands #{:cmd/if :cmd/echo :cmd/for})
+
+(defn all-items
+  "Returns a seq of the items of a control AST and the items of all branches."
+  [items]
+  (mapcat (fn [item] (cons item (mapcat #(all-items (get item %)) branch-keys))) items))
+
+(defn- token-tag [token] (or (:open token) (:open+close token) (:close token)))
+
+(defn- eligible? [items]
+  (and (:open (first items))
+       (not (:cmd (first items)))
+       (not-any? (fn [item]
+                   (if (:cmd item)
+                     (not (segment-commands (:cmd item)))
+                     (or (= ooxml/tag-instr-text (token-tag item))
+                         (thin-column? {:tag (token-tag item) :attrs (:attrs item)}))))
+                 (all-items items))))
+
+;; uri -> alias map of all namespaces used by the tokens. Known namespaces keep their usual aliases,
+;; the namespaces of Ignorable and Requires attributes keep the aliases given when the template was prepared.
+(defn- namespace-aliases [tokens prepared]
+  (let [uris    (->> (for [token tokens
+                           :let [tag (token-tag token)]
+                           :when tag
+                           uri (cons (xml-name/qname-uri tag)
+                                     (map xml-name/qname-uri (keys (:attrs token))))]
+                       uri)
+                     (remove #{"" xml-uri})
+                     (set))
+        known   (merge (select-keys ooxml/default-aliases uris) prepared)
+        taken   (into (set (vals ooxml/default-aliases)) (vals prepared))
+        unknown (sort (remove known uris))]
+    (merge known (zipmap unknown (remove taken (map (partial str "ns") (range)))))))
+
+(defn- ->qualified-name [aliases k]
+  (let [uri (xml-name/qname-uri k)]
+    (cond (= "" uri)     (xml-name/qname-local k)
+          (= xml-uri uri) (str "xml:" (xml-name/qname-local k))
+          :else          (str (aliases uri) ":" (xml-name/qname-local k)))))
+
+;; keyword -> serialized name of every tag and attribute of the tokens.
+(defn- qualified-names [tokens aliases]
+  (into {}
+        (for [token tokens
+              :let [tag (token-tag token)]
+              :when tag
+              k (cons tag (keys (:attrs token)))]
+          [k (->qualified-name aliases k)])))
+
+(defn- qualified-name ^String [ctx k]
+  (or (get (:names ctx) k) (->qualified-name (:aliases ctx) k)))
+
+(defn- declarations [aliases]
+  (apply str (for [[uri alias] (sort-by val aliases)]
+               (str " xmlns:" alias "=\"" uri "\""))))
+
+;; the whitespace fix of text elements may create these elements and attributes.
+(def ^:private fixed-text-tokens [{:open ooxml/t :attrs {ooxml/space "preserve"}} {:open+close ooxml/br} {:open+close ooxml/tab}])
+
+(defn context
+  "Returns the serialization context of a control AST: the aliases of all namespaces that are declared on
+   the root element, which is the first item."
+  [items]
+  (let [tokens  (remove :cmd (all-items items))
+        aliases (namespace-aliases tokens (::ignored-tag/aliases (first items)))]
+    {:aliases      aliases
+     :names        (qualified-names (concat tokens fixed-text-tokens) aliases)
+     :root         (first items)
+     :declarations (declarations aliases)}))
+
+(defn- append-escaped! [^StringBuilder sb ^String s attribute?]
+  (dotimes [i (.length s)]
+    (let [c (.charAt s i)]
+      (case c
+        \& (.append sb "&amp;")
+        \< (.append sb "&lt;")
+        \> (.append sb "&gt;")
+        \" (if attribute? (.append sb "&quot;") (.append sb c))
+        (.append sb c))))
+  sb)
+
+(defn- append-start-tag! [^StringBuilder sb ctx token tag attrs]
+  (.append sb \<)
+  (.append sb (qualified-name ctx tag))
+  (when (identical? token (:root ctx))
+    (.append sb ^String (:declarations ctx)))
+  (doseq [[k v] attrs]
+    (.append sb \space)
+    (.append sb (qualified-name ctx k))
+    (.append sb "=\"")
+    (append-escaped! sb (str v) true)
+    (.append sb \")))
+
+(defn- append-token! [^StringBuilder sb ctx token]
+  (cond (contains? token :text)
+        (append-escaped! sb (:text token) false)
+
+        (:open token)
+        (do (append-start-tag! sb ctx token (:open token) (:attrs token))
+            (.append sb \>))
+
+        (:open+close token)
+        (do (append-start-tag! sb ctx token (:open+close token) (:attrs token))
+            (.append sb "/>"))
+
+        (:close token)
+        (-> sb (.append "</") (.append (qualified-name ctx (:close token))) (.append \>))))
+
+;; appends a <w:t> element with the whitespace fix applied.
+(defn- append-text-element! [^StringBuilder sb ctx element]
+  (doseq [elem (fix-text-element element)]
+    (if (seq (:content elem))
+      (do (append-start-tag! sb ctx elem (:tag elem) (:attrs elem))
+          (.append sb \>)
+          (doseq [text (:content elem)] (append-escaped! sb text false))
+          (-> sb (.append "</") (.append (qualified-name ctx (:tag elem))) (.append \>)))
+      (do (append-start-tag! sb ctx elem (:tag elem) (:attrs elem))
+          (.append sb "/>")))))
+
+;; appends an element tree, content of elements is already postprocessed.
+(defn- append-node! [^StringBuilder sb ctx node]
+  (cond (map? node)
+        (do (append-start-tag! sb ctx node (:tag node) (:attrs node))
+            (if (seq (:content node))
+              (do (.append sb \>)
+                  (doseq [child (:content node)] (append-node! sb ctx child))
+                  (-> sb (.append "</") (.append (qualified-name ctx (:tag node))) (.append \>)))
+              (.append sb "/>")))
+
+        (some? node)
+        (append-escaped! sb (str node) false)))
+
+;; uri -> alias map of the namespaces of the element tree that are not declared on the root element.
+(defn- local-aliases [ctx element]
+  (let [aliases (:aliases ctx)
+        uris    (->> (for [node (tree-seq map? :content element)
+                           :when (map? node)
+                           uri (cons (xml-name/qname-uri (:tag node))
+                                     (map xml-name/qname-uri (keys (:attrs node))))
+                           :when (not (contains? aliases uri))]
+                       uri)
+                     (remove #{"" xml-uri})
+                     (distinct)
+                     (sort))]
+    (zipmap uris (map (partial str "ns") (iterate inc (count aliases))))))
+
+(defn token->string
+  "Serializes a token of the control AST with the context."
+  ^String [ctx token]
+  (str (append-token! (StringBuilder.) ctx token)))
+
+(defn element->string
+  "Serializes an XML element tree with the context. Namespaces that are not declared on the root element
+   are declared on the element."
+  ^String [ctx element]
+  (let [local (local-aliases ctx element)
+        ctx   (if (seq local)
+                (-> ctx
+                    (update :aliases merge local)
+                    (assoc :root element :declarations (declarations local)))
+                (dissoc ctx :root))]
+    (str (append-node! (StringBuilder.) ctx element))))
+
+;; Index of the {:close t} token that closes the <w:t> element opened at index i when there are only
+;; static texts between them.
+(defn- static-text-end [tokens i]
+  (loop [j (inc i)]
+    (when (< j (count tokens))
+      (let [token (nth tokens j)]
+        (cond (= ooxml/t (:close token)) j
+              (contains? token :text)    (recur (inc j)))))))
+
+;; Serializes a run of static tokens. The <w:t> elements that are not closed in the run are
+;; kept as tokens with their texts, because the whitespace fix depends on the evaluated content.
+(defn- segment-run [ctx tokens]
+  (let [sb  (StringBuilder.)
+        out (java.util.ArrayList.)
+        flush! (fn [] (when (pos? (.length sb))
+                        (.add out {::segment (.getBytes (str sb) StandardCharsets/UTF_8)})
+                        (.setLength sb 0)))]
+    (when (identical? (first tokens) (:root ctx))
+      (.append sb ^String xml-declaration))
+    (loop [i 0, state :unknown]
+      (when (< i (count tokens))
+        (let [token (nth tokens i)]
+          (cond (= ooxml/t (:open token))
+                (if-let [end (static-text-end tokens i)]
+                  (do (append-text-element! sb ctx {:tag     ooxml/t
+                                                    :attrs   (:attrs token)
+                                                    :content (mapv :text (subvec tokens (inc i) end))})
+                      (recur (inc (long end)) :outside))
+                  (do (flush!) (.add out token) (recur (inc i) :inside)))
+
+                (= ooxml/t (:close token))
+                (do (flush!) (.add out token) (recur (inc i) :outside))
+
+                (contains? token :text)
+                (if (= :outside state)
+                  (do (append-token! sb ctx token) (recur (inc i) state))
+                  (do (flush!) (.add out token) (recur (inc i) state)))
+
+                :else
+                (do (append-token! sb ctx token) (recur (inc i) :outside))))))
+    (flush!)
+    (vec out)))
+
+(defn- segment-items [ctx items]
+  (->> items
+       (partition-by (comp boolean :cmd))
+       (mapcat (fn [group]
+                 (if (:cmd (first group))
+                   (for [item group]
+                     (reduce (fn [item k] (if (contains? item k) (update item k (partial segment-items ctx)) item))
+                             item branch-keys))
+                   (segment-run ctx (vec group)))))
+       (vec)))
+
+(defn segment-executable
+  "Replaces the static token runs of a compiled control AST with pre-serialized segments.
+   Returns a map of the new items and the serialization context or nil when the items are not eligible."
+  [items]
+  (when (eligible? items)
+    (let [ctx (context items)]
+      {:items   (segment-items ctx items)
+       :context ctx})))
+
+;; Reducing function that writes segments and tokens to the output stream.
+;; Texts of <w:t> elements are buffered until the element is closed.
+(defn- token-writer [ctx ^ByteArrayOutputStream out]
+  (let [sb      (StringBuilder.)
+        text    (volatile! nil)
+        give-up #(throw (ex-info "Evaluated tokens need postprocessing." {::give-up true}))
+        write!  (fn [] (let [bs (.getBytes (str sb) StandardCharsets/UTF_8)]
+                         (.setLength sb 0)
+                         (.write out bs 0 (alength bs))))]
+    (fn [acc token]
+      (let [t @text]
+        (cond (::segment token)
+              (let [^bytes bs (::segment token)]
+                (when t (give-up))
+                (.write out bs 0 (alength bs)))
+
+              (contains? token :text)
+              (let [value (:text token)]
+                (when (instance? IRecord value) (give-up))
+                (if t
+                  (vreset! text (update t :content conj value))
+                  (do (append-escaped! sb value false) (write!))))
+
+              t
+              (if (= ooxml/t (:close token))
+                (do (vreset! text nil)
+                    (append-text-element! sb ctx t)
+                    (write!))
+                (give-up))
+
+              (= ooxml/t (:open token))
+              (vreset! text {:tag ooxml/t :attrs (:attrs token) :content []})
+
+              :else
+              (do (append-token! sb ctx token) (write!)))
+        acc))))
+
+(defn render-bytes
+  "Calls reduce-tokens with a reducing function and an initial value to reduce the evaluated segments and tokens.
+   Returns the serialized document or nil when the evaluated tokens need postprocessing."
+  [ctx reduce-tokens]
+  (let [out (ByteArrayOutputStream.)]
+    (try (reduce-tokens (token-writer ctx out) nil)
+         (.toByteArray out)
+         (catch ExceptionInfo e
+           (if (::give-up (ex-data e))
+             nil
+             (throw e))))))
@@ -1,4 +1,5 @@
 (ns stencil.spec
+  (:import [io.github.erdos.stencil.impl ZipArchive ZipArchive$Entry])
   (:require [clojure.spec.alpha :as s]
             [stencil.fs :as fs]
             [stencil.model :as m]
@@ -43,11 +44,14 @@
                :req-un [::source-file :stencil.model/executable :?/relations]
                :opt-un [::result])))
 
-(s/def ::source-folder (s/and fs/directory? fs/exists?))
+;; either an unzipped directory or an in-memory archive
+(s/def ::source-folder (s/or :dir     (s/and (partial instance? java.io.File) fs/directory? fs/exists?)
+                             :archive (partial instance? ZipArchive)))
 
-(s/def ::source-file (s/and (partial instance? java.io.File)
-                            (complement fs/directory?)
-                            fs/exists?))
+(s/def ::source-file (s/or :file  (s/and (partial instance? java.io.File)
+                                         (complement fs/directory?)
+                                         fs/exists?)
+                           :entry (partial instance? ZipArchive$Entry)))
 
 (s/def ::main (s/keys :req [:stencil.model/path]
                       :opt-un [:stencil.model/headers+footers ::result] ;; not present in fragments
@@ -84,7 +88,8 @@
   :args (s/cat :model :stencil.model/model
                :data ::data
                :unused/function-arg any?
-               :fragments (s/map-of string? :stencil.model/model))
+               :fragments (s/map-of string? :stencil.model/model)
+               :opts map?)
   :ret  :stencil.model/model)
 
 (s/def :exec/variables (s/coll-of string? :unique true))
@@ -107,5 +112,5 @@
 (s/def ::writer (s/fspec :args (s/cat :writer (partial instance? java.io.Writer)) :ret nil?))
 
 (s/fdef template-model->writers-map
-  :args (s/cat :model :stencil.model/model, :data ::data, :functions any?, :fragments any?)
+  :args (s/cat :model :stencil.model/model, :data ::data, :functions any?, :fragments any?, :opts (s/? map?))
   :ret (s/map-of :stencil.model/path ::writer))
\ No newline at end of file
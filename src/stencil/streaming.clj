@@ -0,0 +1,77 @@
+(ns stencil.streaming
+  "Streaming render of the main document.
+
+   The evaluated tokens are not collected into a single XML tree. Every top-level element of the document
+   body (paragraph, table, section properties) is built and postprocessed on its own as soon as it is
+   complete, then it is serialized to an output stream. Memory usage depends on the size of the largest
+   body element instead of the size of the whole document."
+  (:import [java.io OutputStream]
+           [java.nio.charset StandardCharsets]
+           [java.util ArrayList])
+  (:require [stencil.eval :as eval]
+            [stencil.ooxml :as ooxml]
+            [stencil.segments :as segments]
+            [stencil.tokenizer :as tokenizer]
+            [stencil.tree-postprocess :as tree-postprocess]))
+
+(set! *warn-on-reflection* true)
+
+;; the markers of these functions are resolved on an image or hyperlink that may be in an earlier body element.
+(def ^:private backward-functions #{"replaceImage" "replaceLink"})
+
+(defn- calls-backward-function? [item]
+  (some (fn [e] (and (sequential? e)
+                     (= :fncall (first e))
+                     (contains? backward-functions (name (second e)))))
+        (tree-seq sequential? seq (or (:expression item) (:condition item)))))
+
+(defn streamable?
+  "Tells if the body elements of a main document executable can be postprocessed independently.
+   The root and body elements must be static and there must be no cross-references and no replaceImage()
+   or replaceLink() calls in the document, because they are resolved from the whole document."
+  [executable]
+  (let [items (:executable executable)]
+    (boolean
+     (and (:dynamic? executable)
+          (:open (first items))
+          (not (:cmd (first items)))
+          (= ooxml/body (:open (second items)))
+          (= ooxml/body (:close (last (butlast items))))
+          (= (:open (first items)) (:close (last items)))
+          (not-any? #(or (= ooxml/tag-instr-text (:open %))
+                         (calls-backward-function? %))
+                    (segments/all-items items))))))
+
+(defn render-stream!
+  "Evaluates a compiled main document executable and writes the serialized XML document to the output stream.
+   The executable must be streamable."
+  [executable data functions ^OutputStream out]
+  (assert (streamable? executable))
+  (let [[root body]  (:executable executable)
+        ctx          (segments/context (:executable executable))
+        write!       (fn [^String s] (let [bs (.getBytes s StandardCharsets/UTF_8)] (.write out bs 0 (alength bs))))
+        chunk        (ArrayList.)
+        depth        (volatile! 0)
+        ;; builds and postprocesses a body element in a document that only contains this element.
+        write-chunk! (fn []
+                       (let [tokens (-> [root body] (into chunk) (conj {:close (:open body)} {:close (:open root)}))]
+                         (.clear chunk)
+                         (doseq [element (-> (tokenizer/tokens-seq->document tokens)
+                                             (tree-postprocess/postprocess-steps (tree-postprocess/tokens-steps tokens))
+                                             :content first :content)]
+                           (write! (segments/element->string ctx element)))))]
+    (write! segments/xml-declaration)
+    ((eval/evaled-tokens executable data functions)
+     (fn [acc token]
+       (let [d @depth]
+         (if (or (> d 2) (and (= d 2) (not (:close token))))
+           (do (.add chunk token)
+               (cond (:open token)  (vswap! depth inc)
+                     (:close token) (vswap! depth dec))
+               (when (= 2 @depth) (write-chunk!)))
+           (do (write! (segments/token->string ctx token))
+               (cond (:open token)  (vswap! depth inc)
+                     (:close token) (vswap! depth dec)))))
+       acc)
+     nil)
+    (.flush out)))
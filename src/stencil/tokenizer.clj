@@ -3,7 +3,12 @@
   (:require [clojure.data.xml :as xml]
             [clojure.string :refer [includes? split]]
             [stencil.infix :as infix]
-            [stencil.util :refer [assoc-some mod-stack-top-conj mod-stack-top-last parsing-exception trim]]))
+            [clojure.data.xml.name :as xml-name]
+            [stencil.util :refer [assoc-some parsing-exception trim]])
+  (:import [clojure.data.xml.node Element]
+           [java.io InputStream Reader]
+           [java.util ArrayList]
+           [javax.xml.stream XMLInputFactory XMLStreamConstants XMLStreamReader]))
 
 (set! *warn-on-reflection* true)
 
@@ -67,33 +72,114 @@
     :else
     [(assoc-some {:open+close (:tag parsed)} :attrs (not-empty (:attrs parsed)))]))
 
-(defn- tokens-seq-reducer [stack token]
-  (cond
-    (:text token)
-    (mod-stack-top-conj stack (:text token))
-
-    (:open+close token)
-    (let [elem (xml/element (:open+close token) (:attrs token))]
-      (mod-stack-top-conj stack elem))
-
-    (:open token)
-    (let [elem (xml/element (:open token) (:attrs token))]
-      (-> stack (mod-stack-top-conj elem) (conj [])))
-
-    (:close token)
-    (let [[s & stack] stack]
-      (mod-stack-top-last stack assoc-some :content (not-empty s)))
-
-    :else
-    (throw (ex-info (str "Unexpected token: " token " of " (type token)) {:token token}))))
+;; same options as clojure.data.xml/parse uses
+(defn- stream-reader ^XMLStreamReader [input]
+  (let [factory (doto (XMLInputFactory/newInstance)
+                  (.setProperty XMLInputFactory/IS_COALESCING true)
+                  (.setProperty XMLInputFactory/IS_NAMESPACE_AWARE true)
+                  (.setProperty XMLInputFactory/IS_SUPPORTING_EXTERNAL_ENTITIES false))]
+    (if (instance? Reader input)
+      (.createXMLStreamReader factory ^Reader input)
+      (.createXMLStreamReader factory ^InputStream input))))
+
+(defn- element-tag [^XMLStreamReader reader]
+  (xml-name/qname (.getNamespaceURI reader) (.getLocalName reader) (.getPrefix reader)))
+
+(defn- element-attrs [^XMLStreamReader reader]
+  (loop [i 0, attrs (transient {})]
+    (if (< i (.getAttributeCount reader))
+      (recur (inc i)
+             (assoc! attrs
+                     (xml-name/qname (.getAttributeNamespace reader i) (.getAttributeLocalName reader i) (.getAttributePrefix reader i))
+                     (.getAttributeValue reader i)))
+      (persistent! attrs))))
+
+(defn read-tokens
+  "Reads an XML document with a pull parser and returns a vector of the same tokens as structure->seq
+   returns for the parsed document, without building the tree.
+   The attributes of every element are mapped with (map-attrs tag attrs prefix->uri) where prefix->uri
+   resolves namespace prefixes in the scope of the element."
+  [input map-attrs]
+  (let [reader      (stream-reader input)
+        prefix->uri (fn [prefix] (.getNamespaceURI reader ^String prefix))
+        ;; the start token is only added when the next event tells if the element is empty.
+        open-token  (fn [tag attrs] (assoc-some {:open tag} :attrs (not-empty attrs)))]
+    (try
+      (loop [tokens (transient []), pending nil]
+        (let [event (.next reader)]
+          (cond
+            (= event XMLStreamConstants/START_ELEMENT)
+            (let [tag (element-tag reader)]
+              (recur (cond-> tokens pending (conj! (apply open-token pending)))
+                     [tag (map-attrs tag (element-attrs reader) prefix->uri)]))
+
+            (= event XMLStreamConstants/END_ELEMENT)
+            (recur (conj! tokens (if-let [[tag attrs] pending]
+                                   (assoc-some {:open+close tag} :attrs (not-empty attrs))
+                                   {:close (element-tag reader)}))
+                   nil)
+
+            (= event XMLStreamConstants/CHARACTERS)
+            (let [text (.getText reader)]
+              (if (empty? text)
+                (recur tokens pending)
+                (recur (-> tokens
+                           (cond-> pending (conj! (apply open-token pending)))
+                           (conj! {:text text}))
+                       nil)))
+
+            (= event XMLStreamConstants/END_DOCUMENT)
+            (persistent! tokens)
+
+            ;; comments, processing instructions, etc.
+            :else
+            (recur tokens pending))))
+      (finally (.close reader)))))
+
+(defn tokens->document
+  "Builds an XML tree from a function that is called with a reducing function and an initial value
+   and reduces the tokens of the document."
+  [reduce-tokens]
+  ;; the open tokens and the transient content vectors of the elements that are not closed yet.
+  ;; the first content vector holds the root element.
+  (let [opened   (ArrayList.)
+        contents (doto (ArrayList.) (.add (transient [])))
+        append!  (fn [item]
+                   (let [top (dec (.size contents))]
+                     (.set contents top (conj! (.get contents top) item))))]
+    (reduce-tokens
+     (fn [_ token]
+       (cond
+         (:text token)
+         (append! (:text token))
+
+         (:open+close token)
+         (append! (xml/element (:open+close token) (:attrs token)))
+
+         (:open token)
+         (do (.add opened token)
+             (.add contents (transient [])))
+
+         (:close token)
+         (do (assert (pos? (.size opened)) (str "Unexpected close token: " (pr-str token)))
+             (let [open    (.remove opened (int (dec (.size opened))))
+                   content (persistent! (.remove contents (int (dec (.size contents)))))]
+               ;; the element is created once, with the final content
+               (append! (if (seq content)
+                          (Element. (:open open) (or (:attrs open) {}) content nil)
+                          (xml/element (:open open) (:attrs open))))))
+
+         :else
+         (throw (ex-info (str "Unexpected token: " token " of " (type token)) {:token token}))))
+     nil)
+    (assert (= 1 (.size contents)) (str "Elements are not closed: " (pr-str (map :open opened))))
+    (let [result (persistent! (.get contents 0))]
+      (assert (= 1 (count result)) (pr-str result))
+      (first result))))
 
 (defn tokens-seq->document
   "From token seq builds an XML tree."
   [tokens-seq]
-  (let [start '(())
-        result (reduce tokens-seq-reducer start tokens-seq)]
-    (assert (= 1 (count result)) (str (pr-str result)))
-    (assert (= 1 (count (first result))))
-    (ffirst result)))
+  (tokens->document (fn [rf init] (reduce rf init tokens-seq))))
 
 :OK
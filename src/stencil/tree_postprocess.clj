@@ -1,13 +1,59 @@
 (ns stencil.tree-postprocess
   "Postprocessing an xml tree"
-  (:require [stencil.postprocess.table :refer [fix-tables]]
-            [stencil.postprocess.whitespaces :refer [fix-whitespaces]]
-            [stencil.postprocess.ignored-tag :refer [unmap-ignored-attr]]
+  (:require [clojure.set :as set]
+            [stencil.ooxml :as ooxml]
+            [stencil.postprocess.fused :as fused]
+            [stencil.postprocess.table :refer [fix-tables thin-column? hide-table-column-marker? hide-table-row-marker?]]
+            [stencil.postprocess.whitespaces :refer [fix-whitespaces fixable-text?]]
+            [stencil.postprocess.ignored-tag :as ignored-tag :refer [unmap-ignored-attr]]
             [stencil.postprocess.images :refer [replace-images]]
             [stencil.postprocess.links :refer [replace-links]]
             [stencil.postprocess.list-ref :refer [fix-list-dirty-refs]]
             [stencil.postprocess.fragments :refer [unpack-fragments]]
-            [stencil.postprocess.html :refer [fix-html-chunks]]))
+            [stencil.postprocess.html :refer [fix-html-chunks]])
+  (:import [stencil.postprocess.html HtmlChunk]
+           [stencil.postprocess.images ReplaceImage]
+           [stencil.postprocess.links ReplaceLink]))
+
+(set! *warn-on-reflection* true)
+
+;; steps that are run in one traversal by stencil.postprocess.fused
+(def ^:private fused-steps {::links :links? ::images :images? ::html :html? ::whitespaces :whitespaces?})
+
+(def ^:private all-steps #{::fragments ::links ::images ::list-refs ::html ::whitespaces ::tables})
+
+(defn- run-fused [xml-tree step-set]
+  (let [options (into {} (for [[step k] fused-steps :when (contains? step-set step)] [k true]))]
+    (if (seq options)
+      (fused/postprocess xml-tree options)
+      xml-tree)))
+
+(defn postprocess-steps
+  "Runs the postprocess steps of the set on the elements of the tree. Does not map the Ignorable attributes."
+  [xml-tree step-set]
+  (let [step-set (if (contains? step-set ::all) all-steps step-set)]
+    (cond-> xml-tree
+
+      ;; call this first. includes fragments and evaluates them too.
+      (contains? step-set ::fragments)
+      (unpack-fragments)
+
+      ;; replaced links and images, html() call results and whitespaces in one traversal.
+      ;; list references are fixed after links and images and before html.
+      (contains? step-set ::list-refs)
+      (-> (run-fused (set/intersection step-set #{::links ::images}))
+          (fix-list-dirty-refs)
+          (run-fused (set/intersection step-set #{::html ::whitespaces})))
+
+      (not (contains? step-set ::list-refs))
+      (run-fused step-set)
+
+      ;; hides rows/columns where markers are present
+      (contains? step-set ::tables)
+      (fix-tables))))
+
+;; postprocess steps that only need the evaluated elements, not the root of the document.
+(defn postprocess-elements [xml-tree] (postprocess-steps xml-tree all-steps))
 
 ;; calls postprocess
 (def postprocess
@@ -16,20 +62,98 @@
    ;; must be called last. replaces the Ignored attrubute values from ids to namespaces.
    #'unmap-ignored-attr
 
-   ;; hides rows/columns where markers are present
-   #'fix-tables
+   #'postprocess-elements))
+
+;; Marker index
+;;
+;; While the evaluated tokens are reduced, the postprocess steps they need are recorded.
+;; Steps of values that are not known here (fragments, custom records) are recorded as ::all.
+;; The tables, whitespaces and html steps only change the inside of a body element of the main document,
+;; they are recorded for the index of the body element and only run on these elements.
+
+(def ^:private local-steps #{::html ::whitespaces ::tables})
+
+(defn- text-steps [text]
+  (cond (string? text)                      (when (fixable-text? text) #{::whitespaces})
+        (instance? HtmlChunk text)          #{::html ::whitespaces}
+        (instance? ReplaceImage text)       #{::images}
+        (instance? ReplaceLink text)        #{::links}
+        (hide-table-column-marker? text)    #{::tables}
+        (hide-table-row-marker? text)       #{::tables}
+        :else                               #{::all}))
 
-   ;; fixes xml:space attribute values where missing
-   #'fix-whitespaces
+(defn- token-steps [token]
+  (cond (contains? token :text)                    (text-steps (:text token))
+        (= ooxml/tag-instr-text (:open token))     #{::list-refs}
+        (:open+close token)                        (when (thin-column? {:tag (:open+close token) :attrs (:attrs token)})
+                                                     #{::tables})))
 
-   ;; includes html() call results.
-   #'fix-html-chunks
+(defn tokens-steps
+  "Returns the set of postprocess steps needed for a sequence of evaluated tokens."
+  [tokens]
+  (transduce (keep token-steps) into #{} tokens))
 
-   #'fix-list-dirty-refs
+(defn marker-index
+  "Returns an empty marker index to be filled by the reducing function of `marking`."
+  []
+  (volatile! {:steps #{} :body nil :blocks {} :aliases nil}))
 
-   #'replace-images
+(defn marking
+  "Wraps a reducing function of evaluated tokens so that it records the needed postprocess steps to the marker index."
+  [rf index]
+  (let [depth      (volatile! 0)
+        root-items (volatile! 0)  ;; number of content items in the root element
+        in-body?   (volatile! false)
+        block      (volatile! -1)] ;; index of the current body element
+    (fn [acc token]
+      (let [d (long @depth)]
+        (when-let [steps (token-steps token)]
+          (if (and @in-body? (> d 2))
+            (vswap! index
+                    (fn [index]
+                      (-> index
+                          (update-in [:blocks @block] (fnil into #{}) (filter local-steps) steps)
+                          (update :steps into (remove local-steps) steps))))
+            (vswap! index update :steps into steps)))
+        (if (:close token)
+          (do (when (= 2 d) (vreset! in-body? false))
+              (vswap! depth dec))
+          (do (case d
+                0 (vswap! index assoc :aliases (::ignored-tag/aliases token))
+                1 (do (when (= ooxml/body (:open token))
+                        (vreset! in-body? true)
+                        (vswap! index assoc :body @root-items))
+                      (vswap! root-items inc))
+                2 (when @in-body? (vswap! block inc))
+                nil)
+              (when (:open token) (vswap! depth inc)))))
+      (rf acc token))))
 
-   #'replace-links
+;; runs the postprocess steps of the blocks map (index -> steps) on the body elements of the main document
+(defn- postprocess-blocks [xml-tree body-index blocks]
+  (if (empty? blocks)
+    xml-tree
+    (-> xml-tree
+        (update :content vec)
+        (update-in [:content body-index :content]
+                   (fn [elements]
+                     (reduce-kv (fn [elements i block-steps] (update elements i postprocess-steps block-steps))
+                                (vec elements)
+                                blocks))))))
 
-   ;; call this first. includes fragments and evaluates them too.
-   #'unpack-fragments))
+(defn postprocess-marked
+  "Like postprocess but only runs the steps recorded in the marker index, local steps only on the marked body elements."
+  [xml-tree index]
+  (let [{step-set :steps, :keys [body blocks aliases]} index
+        tree (if (or (contains? step-set ::all) (some local-steps step-set))
+               ;; local steps run on the whole tree to keep the order of the steps
+               (postprocess-steps xml-tree (reduce into step-set (vals blocks)))
+               (-> xml-tree
+                   (postprocess-steps step-set)
+                   (postprocess-blocks body blocks)))]
+    (if aliases
+      ;; the Ignorable attributes were mapped when the template was prepared
+      (ignored-tag/declare-aliases tree aliases (or (contains? step-set ::all)
+                                                    (contains? step-set ::html)
+                                                    (some #(contains? % ::html) (vals blocks))))
+      (unmap-ignored-attr tree))))
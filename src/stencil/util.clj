@@ -1,6 +1,7 @@
 (ns stencil.util
   (:require [clojure.zip])
-  (:import [io.github.erdos.stencil.exceptions ParsingException EvalException]))
+  (:import [io.github.erdos.stencil.exceptions ParsingException EvalException]
+           [java.util.concurrent Callable ExecutionException ForkJoinPool Future]))
 
 (set! *warn-on-reflection* true)
 
@@ -158,3 +159,15 @@
             (.toString (.subSequence s left-idx right-idx))))))))
 
 :OK
+
+;; Calls the functions on the common fork-join pool and returns a vector of the results.
+;; Dynamic bindings of the caller are conveyed, exceptions are rethrown without wrapping.
+(defn fork-join-invoke [fs]
+  (if (next fs)
+    (let [pool  (ForkJoinPool/commonPool)
+          tasks (mapv (fn [f] (.submit pool ^Callable (bound-fn* f))) fs)]
+      (mapv (fn [^Future task]
+              (try (.get task)
+                   (catch ExecutionException e (throw (.getCause e)))))
+            tasks))
+    (mapv (fn [f] (f)) fs)))
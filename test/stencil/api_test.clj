@@ -1,8 +1,11 @@
 (ns stencil.api-test
-  (:import [io.github.erdos.stencil.exceptions EvalException])
+  (:import [io.github.erdos.stencil EvaluatedDocument]
+           [io.github.erdos.stencil.exceptions EvalException])
   (:require [clojure.test :refer [deftest testing is]]
+            [clojure.data.xml]
             [clojure.java.io]
-            [stencil.api :refer [prepare render! fragment cleanup!]]
+            [clojure.string]
+            [stencil.api :refer [prepare render! fragment cleanup! export-snapshot! load-snapshot link]]
             [stencil.functions :refer [call-fn]]))
 
 (deftest test-prepare+render+cleanup
@@ -169,3 +172,160 @@
         (render! template {:input "data"} :output f :overwrite? true)
         (is @called)
         (finally (remove-method call-fn "customFunction"))))))
+
+(defn- rendered-entries [template data]
+  (with-open [zip (java.util.zip.ZipInputStream. (render! template data :output :input-stream))]
+    (into {}
+          (for [e (repeatedly #(.getNextEntry zip)) :while e]
+            (let [out (java.io.ByteArrayOutputStream.)]
+              (clojure.java.io/copy zip out)
+              [(.getName ^java.util.zip.ZipEntry e) (str out)])))))
+
+(deftest test-prepare-in-memory
+  (let [path     "test-resources/multipart/header.docx"
+        data     {:name "John Doe"}
+        bytes    (java.nio.file.Files/readAllBytes (.toPath (clojure.java.io/file path)))
+        expected (with-open [template (prepare path)]
+                   (rendered-entries template data))]
+    (doseq [[label input] [["bytes" bytes]
+                           ["stream" (java.io.ByteArrayInputStream. bytes)]
+                           ["path" (.toPath (clojure.java.io/file path))]]]
+      (testing (str "Preparing from " label)
+        (with-open [template (prepare input)]
+          (is (nil? (.getTemplateFile template)))
+          (is (= #{"name"} (-> template .getVariables .getAllVariables)))
+          (is (= expected (rendered-entries template data))))))))
+
+(deftest test-render-parallel
+  (let [executor (java.util.concurrent.Executors/newFixedThreadPool 2)
+        data     {:name "John Doe"}
+        entries  (fn [^bytes bs]
+                   (with-open [zip (java.util.zip.ZipInputStream. (java.io.ByteArrayInputStream. bs))]
+                     (into {}
+                           (for [e (repeatedly #(.getNextEntry zip)) :while e]
+                             (let [out (java.io.ByteArrayOutputStream.)]
+                               (clojure.java.io/copy zip out)
+                               [(.getName ^java.util.zip.ZipEntry e) (vec (.toByteArray out))])))))]
+    (try
+      (with-open [template (prepare (java.nio.file.Files/readAllBytes
+                                     (.toPath (clojure.java.io/file "test-resources/multipart/header.docx"))))]
+        (let [sequential (java.io.ByteArrayOutputStream.)
+              parallel   (java.io.ByteArrayOutputStream.)]
+          (render! template data :output sequential)
+          (render! template data :output parallel :executor executor)
+          (is (= (entries (.toByteArray sequential))
+                 (entries (.toByteArray parallel))))))
+      (finally (.shutdown executor)))))
+
+(deftest test-snapshot
+  (doseq [path ["test-resources/multipart/header.docx" "test-resources/multipart/main.docx"]]
+    (testing (str "Snapshot of " path)
+      (let [data     {:name "John Doe"}
+            snapshot (java.io.ByteArrayOutputStream.)]
+        (with-open [template (prepare path)]
+          (export-snapshot! template snapshot)
+          (with-open [loaded (load-snapshot (.toByteArray snapshot))]
+            (is (nil? (.getTemplateFile loaded)))
+            (is (= (-> template .getVariables .getAllVariables) (-> loaded .getVariables .getAllVariables)))
+            (is (= (-> template .getVariables .getAllFragmentNames) (-> loaded .getVariables .getAllFragmentNames)))
+            (when (empty? (-> template .getVariables .getAllFragmentNames))
+              (is (= (rendered-entries template data) (rendered-entries loaded data))))))))))
+
+(deftest test-link-fragments
+  (with-open [template (prepare "test-resources/multipart-gen/main-plain-with-header.docx")
+              body     (fragment "test-resources/multipart-gen/body-static.docx")
+              header   (fragment "test-resources/multipart-gen/header-static.docx")]
+    (let [data      {:x 1}
+          fragments {"body" body "header" header}
+          ;; gensym ids of relations, images and fragment parts are different in every render
+          normalize (fn [entries] (into {} (for [[k v] entries]
+                                             [(.replaceAll ^String k "[0-9]+" "N")
+                                              (.replaceAll ^String v "(stencilRelId|sid|title)[0-9]+" "$1N")])))
+          expected  (with-open [zip (java.util.zip.ZipInputStream. (render! template data :fragments fragments :output :input-stream))]
+                      (into {} (for [e (repeatedly #(.getNextEntry zip)) :while e]
+                                 (let [out (java.io.ByteArrayOutputStream.)]
+                                   (clojure.java.io/copy zip out)
+                                   [(.getName ^java.util.zip.ZipEntry e) (str out)]))))]
+      (with-open [linked (link template fragments)]
+        (testing "Linked fragments are not needed when rendering"
+          (is (empty? (-> linked .getVariables .getAllFragmentNames)))
+          (is (= (normalize expected) (normalize (rendered-entries linked data))))
+          (is (= (normalize expected) (normalize (rendered-entries linked data)))))
+        (testing "Snapshots are not supported"
+          (is (thrown? UnsupportedOperationException (export-snapshot! linked (java.io.ByteArrayOutputStream.)))))
+        (testing "Only prepared templates and fragments can be linked"
+          (is (thrown? clojure.lang.ExceptionInfo (link "test-resources/multipart-gen/main-plain-with-header.docx" fragments)))
+          (is (thrown? clojure.lang.ExceptionInfo (link template {"body" "test-resources/multipart-gen/body-static.docx"}))))
+        (testing "Can not render when a linked fragment is cleared"
+          (cleanup! body)
+          (is (thrown? IllegalStateException (rendered-entries linked data))))))))
+
+(deftest test-parallel-evaluation
+  (let [options   (.withParallelEvaluation (io.github.erdos.stencil.PrepareOptions/options))
+        file      (clojure.java.io/file "test-resources/multipart/main.docx")
+        fragments {"body"   (fragment "test-resources/multipart/body.docx")
+                   "header" (fragment "test-resources/multipart/header.docx")
+                   "footer" (fragment "test-resources/multipart/footer.docx")}
+        ;; names of inserted parts contain generated ids
+        entries   (fn [template]
+                    (with-open [zip (java.util.zip.ZipInputStream.
+                                     (render! template {:name "John Doe"} :fragments fragments :output :input-stream))]
+                      (frequencies (for [e (repeatedly #(.getNextEntry zip)) :while e]
+                                     (clojure.string/replace (.getName ^java.util.zip.ZipEntry e) #"\d+" "")))))]
+    (with-open [sequential (prepare file)
+                parallel   (io.github.erdos.stencil.API/prepare file options)]
+      (is (= (entries sequential) (entries parallel))))))
+
+(deftest test-streaming-render
+  (let [options   (.withStreamingRender (io.github.erdos.stencil.PrepareOptions/options))
+        file      (clojure.java.io/file "test-resources/multipart/main.docx")
+        fragments {"body"   (fragment "test-resources/multipart/body.docx")
+                   "header" (fragment "test-resources/multipart/header.docx")
+                   "footer" (fragment "test-resources/multipart/footer.docx")}
+        ;; names of inserted parts contain generated ids
+        entries   (fn [template]
+                    (with-open [zip (java.util.zip.ZipInputStream.
+                                     (java.io.ByteArrayInputStream.
+                                      (let [out (java.io.ByteArrayOutputStream.)]
+                                        (render! template {:name "John Doe"} :fragments fragments :output out)
+                                        (.toByteArray out))))]
+                      (into {}
+                            (for [e (repeatedly #(.getNextEntry zip)) :while e
+                                  :let [name (.getName ^java.util.zip.ZipEntry e)
+                                        out  (java.io.ByteArrayOutputStream.)]]
+                              [(clojure.string/replace name #"\d+" "")
+                               (when (= "word/document.xml" name)
+                                 (clojure.java.io/copy zip out)
+                                 (->> (clojure.data.xml/parse-str (String. (.toByteArray out) "UTF-8"))
+                                      (tree-seq map? :content)
+                                      (filter string?)
+                                      (apply str)))]))))]
+    (with-open [template  (prepare file)
+                streaming (io.github.erdos.stencil.API/prepare file options)]
+      (is (= (entries template) (entries streaming))))
+    (testing "Templates with replaceImage() calls are rendered the usual way"
+      (with-open [template (io.github.erdos.stencil.API/prepare (clojure.java.io/file "test-resources/test-image-1.docx") options)]
+        (is (string? (render! template {"image" "data:image/gif;base64,R0lGODlhAQABAAAAACH5BAEKAAEALAAAAAABAAEAAAICTAEAOw=="} :output (java.io.File/createTempFile "stencil" ".docx") :overwrite? true)))))))
+
+(deftest test-streaming-render-spool
+  (let [tmp-dir  (doto (java.io.File/createTempFile "stencil" ".spool-test") (.delete) (.mkdirs))
+        options  (-> (io.github.erdos.stencil.PrepareOptions/options)
+                     (.withStreamingRender)
+                     (.withTemporaryDirectoryOverride tmp-dir))
+        spools   #(filter (fn [^java.io.File f] (.endsWith (.getName f) ".spool")) (file-seq tmp-dir))
+        ;; large enough to be kept in a temporary file
+        data     {"elems" (repeat 20000 {"value" (apply str (repeat 100 "x"))})}
+        bytes    (fn [document] (let [out (java.io.ByteArrayOutputStream.)] (.write ^EvaluatedDocument document out) (.toByteArray out)))]
+    (with-open [template (io.github.erdos.stencil.API/prepare (clojure.java.io/file "test-resources/test-control-loop.docx") options)]
+      (let [document (render! template data)]
+        (is (= 1 (count (spools))))
+        (testing "Document can be written more than once"
+          (is (java.util.Arrays/equals ^bytes (bytes document) ^bytes (bytes document))))
+        (testing "Temporary file is deleted when the document is closed"
+          (.close ^EvaluatedDocument document)
+          (is (empty? (spools)))
+          (is (thrown? IllegalStateException (bytes document)))))
+      (testing "Temporary file is deleted when the document is written by render!"
+        (render! template data :output (java.io.ByteArrayOutputStream.))
+        (is (empty? (spools)))))))
+
@@ -0,0 +1,35 @@
+(ns stencil.emit-test
+  (:require [clojure.data.xml :as xml]
+            [clojure.java.io :as io]
+            [clojure.test :refer [deftest testing is are]]
+            [stencil.emit :as emit])
+  (:import [java.io ByteArrayOutputStream]))
+
+(defn- data-xml-emit [tree]
+  (let [out (ByteArrayOutputStream.) writer (io/writer out)]
+    (xml/emit tree writer)
+    (.flush writer)
+    (.toString out "UTF-8")))
+
+(defn- fast-emit [tree]
+  (let [out (ByteArrayOutputStream.)]
+    (emit/emit! tree out)
+    (.toString out "UTF-8")))
+
+(deftest test-same-as-data-xml
+  (testing "Parsed documents are written the same way"
+    (are [s] (let [tree (xml/parse-str s)] (= (data-xml-emit tree) (fast-emit tree)))
+      "<a/>"
+      "<a x=\"1\" y=\"&quot;&lt;&amp;&gt;'\">text &amp; &lt;b&gt; \"q\"<b/><c></c></a>"
+      "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\"><Default Extension=\"xml\" ContentType=\"application/xml\"/></Types>"
+      "<w:document xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\"><w:body><w:p><w:r><w:t xml:space=\"preserve\"> é😀 </w:t></w:r></w:p></w:body></w:document>"
+      "<a xmlns:x=\"u1\"><b xmlns:y=\"u2\" y:k=\"1\"><x:c/></b><y:d xmlns:y=\"u3\"/></a>"))
+
+  (testing "Namespaces that are not declared get generated prefixes"
+    (are [tree] (= (data-xml-emit tree) (fast-emit tree))
+      {:tag :xmlns.u1/a :attrs {:k "1" :xmlns.u2/k "2"} :content [{:tag :xmlns.u3/b :attrs {:xmlns.u1/k "3"} :content ["x"]}]}
+      {:tag :a :attrs {:xmlns/p "u1"} :content [{:tag :xmlns.u1/b} 1 nil true]})))
+
+(deftest test-text-escaping
+  (is (= "<?xml version=\"1.0\" encoding=\"UTF-8\"?><a b=\"&quot;&amp;'\">&lt;&amp;&gt;\"'</a>"
+         (fast-emit {:tag :a :attrs {:b "\"&'"} :content ["<&>\"'"]}))))
@@ -14,7 +14,11 @@
 
 (defn- test-eval [input expected]
   (is (= expected
-         (normal-control-ast->evaled-seq test-data {} input))))
+         (normal-control-ast->evaled-seq test-data {} input)))
+  (testing "Compiled executable"
+    (let [compiled (compile-executable {:dynamic? true :executable input})]
+      (is (= expected (normal-control-ast->evaled-seq test-data {} (:executable compiled))))
+      (is (= expected ((:stencil.eval/render compiled) conj [] test-data {}))))))
 
 (deftest test-no-change
   (test-eval [{:open "a"} {:close "a"}]
@@ -136,4 +136,28 @@
     (is (thrown? ExceptionInfo (call-fn "replaceImage" "not data uri")))
     (is (thrown? ExceptionInfo (call-fn "replaceImage" "data:image/unknown;base64,XXXXXXX")))
     (is (thrown? ExceptionInfo (call-fn "replaceImage" "data:image/png;lalala")))
-    (is (thrown? ExceptionInfo (call-fn "replaceImage" "data:image/png;lalala,XXXXXXX")))))
\ No newline at end of file
+    (is (thrown? ExceptionInfo (call-fn "replaceImage" "data:image/png;lalala,XXXXXXX")))))
+(deftest test-replace-image-cached
+  (stencil.model.relations/with-extra-files-cache
+    (let [files (fn [f] (stencil.model.relations/with-extra-files-context
+                          [(f) @stencil.model.relations/*extra-files*]))
+          [[a b] main-files]  (files #(vector (call-fn "replaceImage" data-uri) (call-fn "replaceImage" data-uri)))
+          [[c] header-files]  (files #(vector (call-fn "replaceImage" data-uri)))]
+      (testing "The same image is added once in a render"
+        (is (= (:relation a) (:relation b) (:relation c)))
+        (is (= 1 (count main-files)))
+        (is (= main-files header-files)))
+      (testing "Different images get different relations"
+        (is (not= (:relation a)
+                  (:relation (stencil.model.relations/with-extra-files-context
+                               (call-fn "replaceImage" (clojure.string/replace data-uri "image/gif" "image/png"))))))))))
+
+(deftest test-replace-link-cached
+  (stencil.model.relations/with-extra-files-cache
+    (stencil.model.relations/with-extra-files-context
+      (let [a (call-fn "replaceLink" "https://example.com")
+            b (call-fn "replaceLink" "https://example.com")
+            c (call-fn "replaceLink" "https://example.org")]
+        (is (= (:relation a) (:relation b)))
+        (is (not= (:relation a) (:relation c)))
+        (is (= 2 (count @stencil.model.relations/*extra-files*)))))))
@@ -1,5 +1,6 @@
 (ns stencil.ignored-tag-test
   (:require [clojure.data.xml :as xml]
+            [clojure.set]
             [clojure.test :refer [deftest is testing]]
             [stencil.tokenizer :as tokenizer]
             [stencil.merger :as merger]
@@ -32,14 +33,29 @@
    "The value in the Ignorable tag is mapped so that the namespace it
        references doesn't change."
     (-> test-data-2
-        (java.io.StringReader.) (merger/parse-to-tokens-seq) (tokenizer/tokens-seq->document)
-        (clear-all-metas) (unmap-ignored-attr) (xml/emit-str) (xml/parse-str)
+        (java.io.StringReader.) (merger/parse-to-tokens-seq)
+        (as-> * (declare-aliases (clear-all-metas (tokenizer/tokens-seq->document *))
+                                 (:stencil.postprocess.ignored-tag/aliases (first *))
+                                 false))
+        (xml/emit-str) (xml/parse-str)
         (as-> *
               (let [ignorable-value (-> * :content first :attrs ooxml/ignorable)
                     ignorable-ns (-> * meta :clojure.data.xml/nss :p->u (get ignorable-value))]
                 (is (not (empty? ignorable-value)))
                 (is (= "ns2" ignorable-ns)))))))
 
+(deftest test-prepare-ignored-attr
+  (let [[tree aliases] (-> test-data-2 (java.io.StringReader.) (xml/parse) (prepare-ignored-attr))
+        ignorable-value (-> tree :content first :attrs ooxml/ignorable)]
+    (testing "Ignorable values are aliases when the template is prepared"
+      (is (= "ns2" (get (clojure.set/map-invert aliases) ignorable-value))))
+    (testing "Content of fragments is reconciled"
+      (let [extra {:tag ooxml/p :content [{:tag :xmlns.http%3A%2F%2Fschemas.microsoft.com%2Foffice%2Fword%2F2010%2Fwordml/x}]}
+            tree  (update tree :content conj extra)]
+        (is (nil? (-> tree (declare-aliases aliases false) (meta) :clojure.data.xml/nss :p->u (get "w14"))))
+        (is (= "http://schemas.microsoft.com/office/word/2010/wordml"
+               (-> tree (declare-aliases aliases true) (meta) :clojure.data.xml/nss :p->u (get "w14"))))))))
+
 (def test-data-1
   (str
    "<?xml version='1.0' encoding='UTF-8'?>"
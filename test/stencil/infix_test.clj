@@ -9,7 +9,12 @@
 
 (defn- run
   ([xs] (run xs {}))
-  ([xs args] (infix/eval-rpn args (infix/parse xs))))
+  ([xs args]
+   (let [tree   (infix/parse xs)
+         result (infix/eval-rpn args tree)]
+     ;; compiled expressions must give the same result
+     (is (= result ((infix/compile-expr tree) args)) (str "Compiled expression differs: " xs))
+     result)))
 
 
 (deftest tokenize-test
@@ -80,6 +85,9 @@
   (testing "Simple values"
     (is (= 12 (infix/parse "  12 ") (infix/parse "12"))))
 
+  (testing "Same expressions are parsed once"
+    (is (identical? (infix/parse "a.b + f(1)") (infix/parse "a.b + f(1)"))))
+
   (testing "Dotted form for chained access"
     (is (= [:get 'ax "y"] (infix/parse "   ax.y  ")))
     (is (= [:get 'myobject "2mykey"] (infix/parse "myobject.2mykey  ")))
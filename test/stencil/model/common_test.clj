@@ -0,0 +1,23 @@
+(ns stencil.model.common-test
+  (:require [clojure.data.xml :as xml]
+            [clojure.test :refer [deftest testing is are]]
+            [stencil.model.common :refer [->xml-writer appending-writer prepare-xml]])
+  (:import [java.io ByteArrayOutputStream]))
+
+(defn- write-str [writer]
+  (let [out (ByteArrayOutputStream.)]
+    (writer out)
+    (.toString out "UTF-8")))
+
+(deftest test-appending-writer
+  (testing "Same as serializing the tree with the appended nodes"
+    (are [xml-str nodes]
+         (let [tree (xml/parse-str xml-str)]
+           (= (write-str (->xml-writer (update tree :content concat nodes)))
+              (write-str (appending-writer (prepare-xml tree) nodes))))
+      "<a><b/></a>"                       []
+      "<a><b/></a>"                       [{:tag :c :content ["1 < 2"]}]
+      "<a x=\"&lt;/\"/>"                  [{:tag :c}]
+      "<a x=\"&lt;/\"/>"                  []
+      "<a>text</a>"                       ["more" {:tag :c}]
+      "<w:a xmlns:w=\"u1\"><w:b/></w:a>"  [{:tag :xmlns.u1/c :attrs {:xmlns.u1/k "v"}}])))
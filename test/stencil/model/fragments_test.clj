@@ -0,0 +1,25 @@
+(ns stencil.model.fragments-test
+  (:require [clojure.test :refer [deftest testing is]]
+            [stencil.model.fragments :as fragments])
+  (:import [java.util.concurrent CountDownLatch]))
+
+(deftest test-cached-include
+  (testing "The value is computed once for every fragment name"
+    (fragments/with-fragments {}
+      (let [calls   (atom 0)
+            prepare (fn [] (swap! calls inc) (Thread/sleep 20) {:prepared @calls})
+            start   (CountDownLatch. 1)
+            ;; parts evaluated concurrently include the same fragment
+            tasks   (doall (repeatedly 8 #(future (.await start) (fragments/cached-include "body" prepare))))
+            _       (.countDown start)
+            results (mapv deref tasks)]
+        (is (= 1 @calls))
+        (is (apply = {:prepared 1} results))
+        (is (= {:prepared 1} (fragments/cached-include "body" prepare)))
+        (is (= 1 @calls))
+        (fragments/cached-include "header" prepare)
+        (is (= 2 @calls)))))
+
+  (testing "Values of linked fragments are used as they are"
+    (fragments/with-fragments {} {"body" {:linked true}}
+      (is (= {:linked true} (fragments/cached-include "body" #(throw (ex-info "Should not be called" {}))))))))
@@ -1,6 +1,11 @@
 (ns stencil.model-test
   (:require [stencil.model :refer :all]
             [stencil.api :as api]
+            [stencil.eval :as eval]
+            [stencil.model.fragments :as fragments]
+            [stencil.model.numbering :as numbering]
+            [stencil.model.relations :as relations]
+            [stencil.model.style :as style]
             [clojure.datafy :refer [datafy]]
             [clojure.test :refer [deftest is are testing]]))
 
@@ -46,3 +51,35 @@
       (assoc-in [:main :executable :variables] :EXEC/vars)
       (update-in [:main :headers+footers] (partial mapv #(assoc-in % [:executable :executable] :EXEC)))
       (update-in [:main :headers+footers] (partial mapv #(assoc-in % [:relations :parsed] :PARSED/RELS)))))
+
+(deftest test-precomputed-writers
+  (with-open [template (api/prepare "test-resources/multipart/main.docx")]
+    (let [compiled  (compile-model (datafy template))
+          fragments {"body"   (datafy (api/fragment "test-resources/multipart/body.docx"))
+                     "header" (datafy (api/fragment "test-resources/multipart/header.docx"))
+                     "footer" (datafy (api/fragment "test-resources/multipart/footer.docx"))}
+          render    (fn [model] (template-model->writers-map model {:name "John Doe"} (fn [_ _]) fragments))
+          ;; gensym ids of the copied images are different in every render
+          paths     (fn [writers] (set (map #(.replaceAll ^String % "[0-9]+" "N") (keys writers))))]
+      (is (contains? compiled :stencil.model/writers))
+      (testing "Same parts as computing every writer when rendering"
+        (is (= (paths (render (dissoc compiled :stencil.model/writers)))
+               (paths (render compiled))))))))
+
+(deftest test-static-fragment-include
+  (let [template (datafy (api/prepare "test-resources/multipart-gen/main-plain.docx"))
+        fragment (datafy (api/fragment "test-resources/multipart-gen/body-static.docx"))
+        include  #(-> (eval/eval-step (fn [_ _]) {} {:cmd :cmd/include :name "body"}) first :text :result :frag-evaled-parts)]
+    (is (some? (:stencil.model/static-body (:main fragment))))
+    (binding [style/*current-styles* (atom (:parsed (:style (:main template))))
+              numbering/*numbering*  (numbering/-initial-numbering-context template)
+              relations/*extra-files* (atom #{})]
+      (fragments/with-fragments {"body" fragment}
+        (let [parts  (include)
+              styles @style/*current-styles*
+              files  @relations/*extra-files*]
+          (is (seq parts))
+          (testing "Repeated includes reuse the renamed body and the new style and relation ids"
+            (is (= parts (include)))
+            (is (= styles @style/*current-styles*))
+            (is (= files @relations/*extra-files*))))))))
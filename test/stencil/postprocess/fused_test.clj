@@ -0,0 +1,60 @@
+(ns stencil.postprocess.fused-test
+  (:import [clojure.lang ExceptionInfo])
+  (:require [clojure.test :refer [deftest testing is are]]
+            [stencil.ooxml :as ooxml]
+            [stencil.postprocess.fused :as fused]
+            [stencil.postprocess.html :refer [->HtmlChunk fix-html-chunks]]
+            [stencil.postprocess.images :refer [->ReplaceImage replace-images]]
+            [stencil.postprocess.links :refer [->ReplaceLink replace-links]]
+            [stencil.postprocess.whitespaces :refer [fix-whitespaces]]))
+
+(defn- <p> [& contents] {:tag ooxml/p :content (vec contents)})
+(defn- <r> [& contents] {:tag ooxml/r :content (vec contents)})
+(defn- <rPr> [& contents] {:tag ooxml/rPr :content (vec contents)})
+(defn- <t> [& contents] {:tag ooxml/t :content (vec contents)})
+(defn- <link> [id & contents] {:tag ooxml/hyperlink :attrs {ooxml/r-id id} :content (vec contents)})
+(defn- <blip> [id] {:tag ooxml/blip :attrs {ooxml/r-embed id}})
+(defn- <body> [& contents] {:tag ooxml/body :content (vec contents)})
+
+;; the steps one after the other as separate tree walks
+(defn- sequential [tree]
+  (-> tree replace-links replace-images fix-html-chunks fix-whitespaces))
+
+(defn- fused [tree]
+  (fused/postprocess tree {:links? true :images? true :html? true :whitespaces? true}))
+
+(deftest test-same-as-sequential
+  (are [tree] (= (sequential tree) (fused tree))
+    (<body> (<p> (<r> (<t> "Hello"))))
+
+    (<body> (<p> (<r> (<t> " spaced ") (<t> "a\nb\tc"))))
+
+    (<body> (<p> (<link> "r1" (<r> (<t> "link" (->ReplaceLink "r2"))))))
+
+    (<body> (<p> (<link> "r1" (<r> (<t> "first")))
+                 (<r> (<t> "text " (->ReplaceLink "r2"))))
+            (<p> (<link> "r3" (<r> (<t> "second" (->ReplaceLink "r4"))))))
+
+    (<body> (<p> (<r> (<blip> "i1")))
+            (<p> (<r> (<t> (->ReplaceImage "i2") " after")))
+            (<p> (<r> (<blip> "i3") (<t> (->ReplaceImage "i4") (->ReplaceImage "i5")))))
+
+    (<body> (<p> (<r> (<rPr>) (<t> "Mr " (->HtmlChunk "E<u>rd</u>os ") " E2" (->HtmlChunk "<b>x</b>") "y\n"))))
+
+    (<body> (<p> (<r> (<rPr>) (<blip> "i1") (<t> "a " (->HtmlChunk "<i>b</i>")))
+                 (<r> (<t> (->ReplaceImage "i2")))))
+
+    (<body> (<p> (<link> "r1" (<r> (<t> (->HtmlChunk "one<br>two") (->ReplaceLink "r2"))))))))
+
+(deftest test-selected-steps
+  (testing "Only the selected steps are run"
+    (let [tree (<body> (<p> (<r> (<t> " a " (->ReplaceLink "r2")))))]
+      (is (= (fix-whitespaces tree) (fused/postprocess tree {:whitespaces? true}))))))
+
+(deftest test-errors
+  (testing "Missing link target"
+    (is (thrown? ExceptionInfo (fused (<body> (<p> (<r> (<t> (->ReplaceLink "r1")))))))))
+  (testing "Missing image target"
+    (is (thrown? ExceptionInfo (fused (<body> (<p> (<r> (<t> (->ReplaceImage "i1")))) (<p> (<r> (<blip> "i0"))))))))
+  (testing "Html chunk outside of a run"
+    (is (thrown? ExceptionInfo (fused (<body> (<p> (->HtmlChunk "a"))))))))
@@ -0,0 +1,79 @@
+(ns stencil.segments-test
+  (:require [clojure.test :refer [deftest is are testing]]
+            [clojure.data.xml :as xml]
+            [stencil.eval :as eval]
+            [stencil.model :as model]))
+
+(defrecord TestMarker [])
+
+(def ^:private w "xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\"")
+
+(defn- test-prepare [xml-str]
+  (-> xml-str (str) (.getBytes) (java.io.ByteArrayInputStream.) (model/->exec)
+      (eval/compile-executable {:segments? true})))
+
+(defn- render-bytes [part data]
+  (some-> (eval/render-bytes part data {}) (String. "UTF-8")))
+
+(defn- render-tree [part data]
+  (xml/emit-str (eval/eval-executable part data {})))
+
+(defn- same-as-tree? [xml-str data]
+  (let [fast (render-bytes (test-prepare xml-str) data)]
+    (is (some? fast))
+    (is (= (xml/parse-str (render-tree (test-prepare xml-str) data))
+           (xml/parse-str fast)))))
+
+(deftest test-render-bytes
+  (testing "Holes in text elements"
+    (are [value] (same-as-tree? (str "<w:document " w "><w:body><w:p><w:r><w:t>Hello {%=x%}!</w:t></w:r></w:p></w:body></w:document>")
+                                {"x" value})
+      "World"
+      " spaced "
+      "two\nlines\tand tab"
+      "<&>\"'"
+      ""
+      nil))
+
+  (testing "Static text elements are fixed at prepare time"
+    (same-as-tree? (str "<w:document " w "><w:body><w:p><w:r><w:t> static </w:t><w:t>a\tb</w:t><w:t/></w:r>"
+                        "<w:r><w:t xml:space=\"preserve\">{%=x%}</w:t></w:r></w:p></w:body></w:document>")
+                   {"x" 1}))
+
+  (testing "Conditions and loops"
+    (are [data] (same-as-tree? (str "<w:document " w "><w:body>"
+                                    "{%for y in xs%}<w:p><w:r><w:t>Item: {%=y%} </w:t></w:r></w:p>{%end%}"
+                                    "<w:p><w:r><w:t>{%if flag%}yes{%else%} no{%end%}</w:t></w:r></w:p>"
+                                    "</w:body></w:document>")
+                               data)
+      {"xs" [1 2 3] "flag" true}
+      {"xs" [] "flag" false}
+      {"xs" {"a" 1 "b" 2} "flag" nil}))
+
+  (testing "Namespaces and attributes"
+    (same-as-tree? "<x:a xmlns:x=\"urn:test\" xmlns:y=\"urn:other\" x:b=\"1&amp;2&quot;\" c=\"3\"><y:c x:d=\"&lt;\">{%=x%}</y:c></x:a>"
+                   {"x" "&"})))
+
+(deftest test-render-bytes-ignorable
+  (let [part   (test-prepare (str "<w:document " w " xmlns:mc=\"http://schemas.openxmlformats.org/markup-compatibility/2006\""
+                                  " xmlns:w14=\"http://schemas.microsoft.com/office/word/2010/wordml\" mc:Ignorable=\"w14\">"
+                                  "<w:body><w:p w14:paraId=\"1\"><w:r><w:t>{%=x%}</w:t></w:r></w:p></w:body></w:document>"))
+        result (xml/parse-str (render-bytes part {"x" 1}))]
+    (is (= "w14" (get-in result [:attrs :xmlns.http%3A%2F%2Fschemas.openxmlformats.org%2Fmarkup-compatibility%2F2006/Ignorable])))
+    (is (= "http://schemas.microsoft.com/office/word/2010/wordml"
+           (get-in (meta result) [:clojure.data.xml/nss :p->u "w14"])))))
+
+(deftest test-render-bytes-fallback
+  (testing "Evaluated markers need the tree"
+    (let [part (test-prepare (str "<w:document " w "><w:body><w:p><w:r><w:t>{%=x%}</w:t></w:r></w:p></w:body></w:document>"))]
+      (is (nil? (render-bytes part {"x" (->TestMarker)})))
+      (testing "only in the same render"
+        (is (= (xml/parse-str (render-tree part {"x" 1}))
+               (xml/parse-str (render-bytes part {"x" 1}))))
+        (is (nil? (render-bytes part {"x" (->TestMarker)}))))))
+
+  (testing "Parts that need postprocessing do not get segments"
+    (are [xml-str] (nil? (:stencil.eval/segments (test-prepare xml-str)))
+      (str "<w:document " w "><w:body>{%include \"fragment\"%}</w:body></w:document>")
+      (str "<w:document " w "><w:body><w:p><w:r><w:instrText> REF _Ref1 \\h </w:instrText></w:r><w:r><w:t>{%=x%}</w:t></w:r></w:p></w:body></w:document>")
+      (str "<w:document " w "><w:body><w:tbl><w:tblGrid><w:gridCol w:w=\"10\"/></w:tblGrid></w:tbl><w:p><w:r><w:t>{%=x%}</w:t></w:r></w:p></w:body></w:document>"))))
@@ -0,0 +1,50 @@
+(ns stencil.streaming-test
+  (:require [clojure.test :refer [deftest is are testing]]
+            [clojure.data.xml :as xml]
+            [stencil.eval :as eval]
+            [stencil.model :as model]
+            [stencil.streaming :as streaming]))
+
+(def ^:private w "xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\"")
+
+(defn- test-prepare [xml-str]
+  (-> xml-str (str) (.getBytes) (java.io.ByteArrayInputStream.) (model/->exec) (eval/compile-executable)))
+
+(defn- render-stream [part data]
+  (let [out (java.io.ByteArrayOutputStream.)]
+    (streaming/render-stream! part data {} out)
+    (String. (.toByteArray out) "UTF-8")))
+
+(defn- same-as-tree? [xml-str data]
+  (let [part (test-prepare xml-str)]
+    (is (streaming/streamable? part))
+    (is (= (xml/parse-str (xml/emit-str (eval/eval-executable part data {})))
+           (xml/parse-str (render-stream part data))))))
+
+(deftest test-render-stream
+  (testing "Loops over body elements"
+    (are [data] (same-as-tree? (str "<w:document " w "><w:body>"
+                                    "{%for y in xs%}<w:p><w:r><w:t>Item: {%=y%} </w:t></w:r></w:p>{%end%}"
+                                    "<w:tbl><w:tr>{%for y in xs%}<w:tc><w:p><w:r><w:t>{%=y%}</w:t></w:r></w:p></w:tc>{%end%}</w:tr></w:tbl>"
+                                    "<w:p><w:r><w:t>{%if flag%}yes{%else%} no{%end%}</w:t></w:r></w:p>"
+                                    "<w:sectPr/></w:body></w:document>")
+                               data)
+      {"xs" [1 "two\nlines" "<&>"] "flag" true}
+      {"xs" [] "flag" false}))
+
+  (testing "Ignorable attribute of the root element"
+    (let [part   (test-prepare (str "<w:document " w " xmlns:mc=\"http://schemas.openxmlformats.org/markup-compatibility/2006\""
+                                    " xmlns:w14=\"http://schemas.microsoft.com/office/word/2010/wordml\" mc:Ignorable=\"w14\">"
+                                    "<w:body><w:p w14:paraId=\"1\"><w:r><w:t>{%=x%}</w:t></w:r></w:p></w:body></w:document>"))
+          result (xml/parse-str (render-stream part {"x" 1}))]
+      (is (= "w14" (get-in result [:attrs :xmlns.http%3A%2F%2Fschemas.openxmlformats.org%2Fmarkup-compatibility%2F2006/Ignorable])))
+      (is (= "http://schemas.microsoft.com/office/word/2010/wordml"
+             (get-in (meta result) [:clojure.data.xml/nss :p->u "w14"]))))))
+
+(deftest test-streamable
+  (are [xml-str] (not (streaming/streamable? (test-prepare xml-str)))
+    "<a>{%=x%}</a>"
+    (str "<w:hdr " w "><w:p><w:r><w:t>{%=x%}</w:t></w:r></w:p></w:hdr>")
+    (str "<w:document " w "><w:body><w:p><w:r><w:instrText> REF _Ref1 \\h </w:instrText></w:r><w:r><w:t>{%=x%}</w:t></w:r></w:p></w:body></w:document>")
+    (str "<w:document " w "><w:body><w:p><w:r><w:t>{%=replaceImage(x)%}</w:t></w:r></w:p></w:body></w:document>")
+    (str "<w:document " w "><w:body>{%for y in xs%}<w:p><w:r><w:t>{%=replaceLink(y.url)%}</w:t></w:r></w:p>{%end%}</w:body></w:document>")))
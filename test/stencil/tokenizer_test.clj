@@ -1,12 +1,35 @@
 (ns stencil.tokenizer-test
   (:require [stencil.merger :as m]
-            [clojure.test :refer [deftest testing is]]))
+            [clojure.data.xml :as xml]
+            [stencil.postprocess.ignored-tag :as ignored-tag]
+            [stencil.tokenizer :as tokenizer]
+            [clojure.test :refer [deftest testing is are]]))
 
 (defn- run [s]
   (->> (java.io.ByteArrayInputStream. (.getBytes (str s)))
        (m/parse-to-tokens-seq)
        (map #(dissoc % :raw))))
 
+(deftest read-tokens-same-as-structure
+  (testing "Pull parsed tokens are the same as the tokens of the prepared tree"
+    (let [found   (volatile! {})
+          pulled  #(tokenizer/read-tokens (java.io.StringReader. %) (partial ignored-tag/prepare-element-attrs found))
+          from-tree #(tokenizer/structure->seq (first (ignored-tag/prepare-ignored-attr (xml/parse-str %))))]
+      (are [s] (do (vreset! found {}) (= (from-tree s) (pulled s)))
+        "<a/>"
+        "<a><b>x</b><c></c>y<!-- comment --><d a=\"1\" b=\"2\"/></a>"
+        "<a xmlns=\"u1\"><b xmlns:x=\"u2\" x:c=\"1\"><x:d>&lt;&amp;</x:d></b></a>"
+        "<w:document xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\" xmlns:mc=\"http://schemas.openxmlformats.org/markup-compatibility/2006\" xmlns:x=\"http://schemas.microsoft.com/office/word/2010/wordml\" mc:Ignorable=\"x\"><w:body><mc:AlternateContent><mc:Choice Requires=\"x\"><w:p/></mc:Choice></mc:AlternateContent></w:body></w:document>"))))
+
+(deftest tokens-seq->document-test
+  (testing "Tokens of a parsed tree are built into the same tree"
+    (are [s] (let [tree (xml/parse-str s)]
+               (= tree (tokenizer/tokens-seq->document (tokenizer/structure->seq tree))))
+      "<a/>"
+      "<a x=\"1\"><b/>text<c y=\"2\">inner<d/></c>tail</a>"))
+  (testing "Elements must be closed"
+    (is (thrown? AssertionError (tokenizer/tokens-seq->document [{:open :a} {:text "x"}])))))
+
 (deftest read-tokens-nested
   (testing "Read a list of nested tokens"
     (is (= (run "<a><b><c/></b><d></d></a>")
@@ -2,6 +2,7 @@
   (:require [clojure.zip :as zip]
             [clojure.test :refer [deftest is are testing]]
             [stencil.util :refer [xml-zip]]
+            [stencil.tokenizer :as tokenizer]
             [stencil.ooxml :as ooxml]
             [stencil.tree-postprocess :refer :all]
             [stencil.postprocess.table :refer :all]))
@@ -185,4 +186,45 @@
                                               (row (cell "a") (cell-of-width 1 "b"))
                                               (row (cell "v") (cell {:tag :tcPr :content [{:tag :tcBorders :content [{:tag :right :attrs {:x 1}}]}]} "dsf"))))))))
 
-:OK
+;; builds the marker index of tokens
+(defn- marked [tokens]
+  (let [index (marker-index)]
+    (reduce (marking conj index) [] tokens)
+    @index))
+
+(def ^:private p-open {:open ooxml/p})
+(def ^:private p-close {:close ooxml/p})
+(def ^:private t-open {:open ooxml/t})
+(def ^:private t-close {:close ooxml/t})
+
+(defn- document [& blocks]
+  (concat [{:open :document} {:open :background} {:close :background} {:open ooxml/body}]
+          (apply concat blocks)
+          [{:close ooxml/body} {:close :document}]))
+
+(defn- paragraph [& texts]
+  (concat [p-open {:open ooxml/r} t-open] (for [t texts] {:text t}) [t-close {:close ooxml/r} p-close]))
+
+(deftest test-marking
+  (testing "Simple texts need no postprocessing"
+    (is (= {:steps #{} :body 1 :blocks {} :aliases nil}
+           (marked (document (paragraph "a") (paragraph "b"))))))
+
+  (testing "Local steps are recorded for the body elements"
+    (is (= {:steps #{} :body 1 :aliases nil :blocks {1 #{:stencil.tree-postprocess/whitespaces}
+                                        2 #{:stencil.tree-postprocess/tables}}}
+           (marked (document (paragraph "a") (paragraph "b ") (paragraph (->HideTableRowMarker)))))))
+
+  (testing "Other steps are recorded for the whole document"
+    (is (= #{:stencil.tree-postprocess/all}
+           (:steps (marked (document (paragraph (reify Object)) (paragraph (->HideTableRowMarker)))))))
+    (is (= #{:stencil.tree-postprocess/list-refs}
+           (:steps (marked (document (concat [p-open {:open ooxml/tag-instr-text} {:text "REF"} {:close ooxml/tag-instr-text} p-close]))))))))
+
+(deftest test-postprocess-marked
+  (are [tokens] (= (postprocess (tokenizer/tokens-seq->document tokens))
+                   (postprocess-marked (tokenizer/tokens-seq->document tokens) (marked tokens)))
+    (document (paragraph "a") (paragraph "b"))
+    (document (paragraph "a") (paragraph " b" "c\nd") (paragraph "e\tf"))
+    (document (concat [{:open :tbl} {:open :tr}] (paragraph "x" (->HideTableRowMarker)) [{:close :tr} {:open :tr}] (paragraph "y") [{:close :tr} {:close :tbl}])
+              (paragraph "z "))))
@@ -97,3 +97,16 @@
   (are [input] (= "abc" (trim input))
     "abc", "    abc", "abc   ", " \t  \n abc \t")
   (is (= "a b c" (trim "  a b c  \t"))))
+
+(def ^:dynamic *fork-join-test-binding* nil)
+
+(deftest fork-join-invoke-test
+  (is (= [] (fork-join-invoke [])))
+  (is (= [1] (fork-join-invoke [(constantly 1)])))
+  (is (= (range 100) (fork-join-invoke (for [i (range 100)] #(do (Thread/sleep (long (rand-int 3))) i)))))
+  (testing "Dynamic bindings are conveyed"
+    (binding [*fork-join-test-binding* :bound]
+      (is (= [:bound :bound] (fork-join-invoke [#(do *fork-join-test-binding*) #(do *fork-join-test-binding*)])))))
+  (testing "Exceptions are not wrapped"
+    (is (thrown-with-msg? clojure.lang.ExceptionInfo #"failing"
+                          (fork-join-invoke [(constantly 1) #(throw (ex-info "failing" {}))])))))